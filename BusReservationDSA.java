@@ -1,5 +1,47 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 // Bus class
 class Bus {
@@ -9,14 +51,35 @@ class Bus {
     private final String endPoint;
     private final String startTime;
     private final double fare;
+    private final String arrivalTime;
+    private final LocalTime departureTime;
+    private final LocalTime parsedArrivalTime;
+
+    private static final DateTimeFormatter[] TIME_FORMATS = {
+            new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern("H:mm").toFormatter(Locale.ENGLISH),
+            new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern("h:mm[ ]a").toFormatter(Locale.ENGLISH),
+            new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern("h[ ]a").toFormatter(Locale.ENGLISH),
+            new DateTimeFormatterBuilder().appendPattern("H.mm").toFormatter(Locale.ENGLISH)
+    };
 
     public Bus(String busNumber, int totalSeats, String startPoint, String endPoint, String startTime, double fare) {
+        this(busNumber, totalSeats, startPoint, endPoint, startTime, fare, null);
+    }
+
+    // arrivalTime may be null when it is not known
+    public Bus(String busNumber, int totalSeats, String startPoint, String endPoint, String startTime, double fare, String arrivalTime) {
+        if (busNumber.indexOf(ReservationSystem.TRIP_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Bus number must not contain '" + ReservationSystem.TRIP_SEPARATOR + "': " + busNumber);
+        }
         this.busNumber = busNumber;
         this.totalSeats = totalSeats;
         this.startPoint = startPoint;
         this.endPoint = endPoint;
         this.startTime = startTime;
         this.fare = fare;
+        this.arrivalTime = arrivalTime == null || arrivalTime.isBlank() ? null : arrivalTime.trim();
+        this.departureTime = parseTime(startTime);
+        this.parsedArrivalTime = parseTime(this.arrivalTime);
     }
 
     public String getBusNumber() {
@@ -35,30 +98,82 @@ class Bus {
         return endPoint;
     }
 
+    public String getStartTime() {
+        return startTime;
+    }
+
+    public double getFare() {
+        return fare;
+    }
+
+    // Null when startTime is not in a recognised clock format
+    public LocalTime getDepartureTime() {
+        return departureTime;
+    }
+
+    // Null when the arrival time is unknown or not in a recognised clock format
+    public LocalTime getArrivalTime() {
+        return parsedArrivalTime;
+    }
+
+    public String getArrivalTimeText() {
+        return arrivalTime;
+    }
+
+    public static LocalTime parseTime(String text) {
+        if (text == null) return null;
+        String trimmed = text.trim();
+        for (DateTimeFormatter format : TIME_FORMATS) {
+            try {
+                return LocalTime.parse(trimmed, format);
+            } catch (DateTimeParseException e) {
+                // try the next format
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "Bus Number: " + busNumber +
                ", Seats: " + totalSeats +
                ", Route: " + startPoint + " to " + endPoint +
                ", Time: " + startTime +
+               (arrivalTime == null ? "" : ", Arrival: " + arrivalTime) +
                ", Fare: " + fare;
     }
 
+    // The arrival time is appended only when known, so files without it keep their old shape
     public String toDataString() {
-        return String.join(",", busNumber, String.valueOf(totalSeats), startPoint, endPoint, startTime, String.valueOf(fare));
+        String data = DataFields.join(busNumber, String.valueOf(totalSeats), startPoint, endPoint, startTime, String.valueOf(fare));
+        return arrivalTime == null ? data : data + "," + DataFields.join(arrivalTime);
     }
 
     public static Bus fromDataString(String data) {
-        String[] parts = data.split(",");
-        if (parts.length != 6) {
-            throw new IllegalArgumentException("Invalid data format for Bus: " + data);
+        String busNumber, startPoint, endPoint, startTime, arrivalTime;
+        int totalSeats;
+        double fare;
+        try {
+            DataFields fields = new DataFields(data);
+            busNumber = fields.next();
+            totalSeats = fields.nextInt();
+            startPoint = fields.next();
+            endPoint = fields.next();
+            startTime = fields.next();
+            fare = fields.nextDouble();
+            arrivalTime = fields.hasNext() ? fields.next() : null;
+            fields.end();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid data format for Bus: " + data, e);
         }
-        return new Bus(parts[0], Integer.parseInt(parts[1]), parts[2], parts[3], parts[4], Double.parseDouble(parts[5]));
+        return new Bus(busNumber, totalSeats, startPoint, endPoint, startTime, fare,
+                arrivalTime == null || arrivalTime.isEmpty() ? null : arrivalTime);
     }
 }
 
 // Customer class
 class Customer {
+    private final int id;
     private final String name;
     private final String mobileNumber;
     private final String email;
@@ -66,6 +181,11 @@ class Customer {
     private final int age;
 
     public Customer(String name, String mobileNumber, String email, String city, int age) {
+        this(0, name, mobileNumber, email, city, age);
+    }
+
+    public Customer(int id, String name, String mobileNumber, String email, String city, int age) {
+        this.id = id;
         this.name = name;
         this.mobileNumber = mobileNumber;
         this.email = email;
@@ -73,367 +193,7746 @@ class Customer {
         this.age = age;
     }
 
+    // For flyweights that override the getters and keep their fields elsewhere
+    protected Customer(int id) {
+        this(id, null, null, null, null, 0);
+    }
+
+    // 0 until CustomerRegistration assigns one
+    public int getId() {
+        return id;
+    }
+
+    public Customer withId(int id) {
+        return new Customer(id, getName(), getMobileNumber(), getEmail(), getCity(), getAge());
+    }
+
     public String getName() {
         return name;
     }
 
+    public String getMobileNumber() {
+        return mobileNumber;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
     @Override
     public String toString() {
-        return "Name: " + name +
-               ", Mobile: " + mobileNumber +
-               ", Email: " + email +
-               ", City: " + city +
-               ", Age: " + age;
+        return "Name: " + getName() +
+               ", Mobile: " + getMobileNumber() +
+               ", Email: " + getEmail() +
+               ", City: " + getCity() +
+               ", Age: " + getAge();
     }
 
     public String toDataString() {
-        return String.join(",", name, mobileNumber, email, city, String.valueOf(age));
+        return DataFields.join(getName(), getMobileNumber(), getEmail(), getCity(), String.valueOf(getAge()));
     }
 
     public static Customer fromDataString(String data) {
-        String[] parts = data.split(",");
-        if (parts.length != 5) {
-            throw new IllegalArgumentException("Invalid data format for Customer: " + data);
+        try {
+            DataFields fields = new DataFields(data);
+            Customer customer = new Customer(fields.next(), fields.next(), fields.next(), fields.next(), fields.nextInt());
+            fields.end();
+            return customer;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid data format for Customer: " + data, e);
+        }
+    }
+
+    public String toRecordString() {
+        return id + "," + toDataString();
+    }
+
+    public static Customer fromRecordString(String record) {
+        int comma = record.indexOf(',');
+        if (comma < 0) {
+            throw new IllegalArgumentException("Invalid data format for Customer: " + record);
         }
-        return new Customer(parts[0], parts[1], parts[2], parts[3], Integer.parseInt(parts[4]));
+        return fromDataString(record.substring(comma + 1)).withId(Integer.parseInt(record.substring(0, comma)));
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof Customer)) return false;
         Customer customer = (Customer) o;
-        return age == customer.age &&
-               name.equals(customer.name) &&
-               mobileNumber.equals(customer.mobileNumber) &&
-               email.equals(customer.email) &&
-               city.equals(customer.city);
+        // Registered customers are identified by their ID alone
+        if (id != 0 || customer.id != 0) {
+            return id == customer.id;
+        }
+        return sameDetails(customer);
+    }
+
+    public boolean sameDetails(Customer customer) {
+        return getAge() == customer.getAge() &&
+               getName().equals(customer.getName()) &&
+               getMobileNumber().equals(customer.getMobileNumber()) &&
+               getEmail().equals(customer.getEmail()) &&
+               getCity().equals(customer.getCity());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, mobileNumber, email, city, age);
+        return id != 0 ? Integer.hashCode(id) : Objects.hash(getName(), getMobileNumber(), getEmail(), getCity(), getAge());
     }
 }
 
-// BusRegistration class
-class BusRegistration {
-    private final Map<String, Bus> busRegistry = new HashMap<>();
+// DataFields class
+// The comma-separated fields of one data-file record. A field holding a comma or a quote, or with spaces at either
+// end, is written in double quotes with embedded quotes doubled. Reading walks the line in place, with no regex and
+// no array of fields.
+class DataFields {
+    private final String line;
+    private int position;
+
+    DataFields(String line) {
+        this.line = line;
+    }
+
+    // True until the last field has been read; an empty line holds one empty field
+    boolean hasNext() {
+        return position <= line.length();
+    }
+
+    String next() {
+        if (!hasNext()) {
+            throw new IllegalArgumentException("Missing field: " + line);
+        }
+        if (position < line.length() && line.charAt(position) == '"') {
+            StringBuilder field = new StringBuilder();
+            int from = position + 1;
+            while (true) {
+                int quote = line.indexOf('"', from);
+                if (quote < 0) {
+                    throw new IllegalArgumentException("Unterminated quote: " + line);
+                }
+                field.append(line, from, quote);
+                if (quote + 1 < line.length() && line.charAt(quote + 1) == '"') {
+                    field.append('"');
+                    from = quote + 2;
+                } else {
+                    from = quote + 1;
+                    break;
+                }
+            }
+            if (from < line.length() && line.charAt(from) != ',') {
+                throw new IllegalArgumentException("Text after a quoted field: " + line);
+            }
+            position = from + 1;
+            return field.toString();
+        }
+        int end = fieldEnd();
+        String field = line.substring(position, end);
+        position = end + 1;
+        return field;
+    }
+
+    // Unquoted numbers are parsed straight from the line
+    int nextInt() {
+        if (hasNext() && position < line.length() && line.charAt(position) != '"') {
+            int end = fieldEnd();
+            int value = Integer.parseInt(line, position, end, 10);
+            position = end + 1;
+            return value;
+        }
+        return Integer.parseInt(next());
+    }
+
+    double nextDouble() {
+        return Double.parseDouble(next());
+    }
+
+    // Rejects a record with fields left over
+    void end() {
+        if (hasNext()) {
+            throw new IllegalArgumentException("Too many fields: " + line);
+        }
+    }
+
+    private int fieldEnd() {
+        int comma = line.indexOf(',', position);
+        return comma < 0 ? line.length() : comma;
+    }
+
+    static int count(String line) {
+        DataFields fields = new DataFields(line);
+        int count = 0;
+        while (fields.hasNext()) {
+            fields.next();
+            count++;
+        }
+        return count;
+    }
+
+    static String join(String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            appendQuoted(line, fields[i]);
+        }
+        return line.toString();
+    }
+
+    private static void appendQuoted(StringBuilder line, String field) {
+        boolean quote = field.indexOf(',') >= 0 || field.indexOf('"') >= 0
+                || (!field.isEmpty() && (Character.isWhitespace(field.charAt(0)) || Character.isWhitespace(field.charAt(field.length() - 1))));
+        if (!quote) {
+            line.append(field);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            line.append(c);
+            if (c == '"') {
+                line.append('"');
+            }
+        }
+        line.append('"');
+    }
+}
+
+// DataFileParser class
+// Reads a registry file in parallel: the bytes are cut into chunks at line boundaries and each chunk is parsed as a
+// task on the common fork-join pool. Records come back in file order, so a registry merges them exactly as it would
+// after a sequential read.
+class DataFileParser {
+    private static final int MIN_CHUNK_BYTES = 1 << 16;
+
+    static class Result<T> {
+        final long snapshotSequence;
+        final List<T> records;
+        // Trimmed text of each line the parser rejected, in file order
+        final List<String> invalidLines;
+
+        Result(long snapshotSequence, List<T> records, List<String> invalidLines) {
+            this.snapshotSequence = snapshotSequence;
+            this.records = records;
+            this.invalidLines = invalidLines;
+        }
+    }
+
+    private static class Chunk<T> {
+        final List<T> records = new ArrayList<>();
+        final List<String> invalidLines = new ArrayList<>();
+    }
+
+    // The parser runs on several threads at once and must not touch shared state
+    static <T> Result<T> parse(String fileName, Function<String, T> parser) throws IOException {
+        byte[] data;
+        try (FileInputStream in = new FileInputStream(fileName)) {
+            data = in.readAllBytes();
+        }
+        long snapshotSequence = 0;
+        int start = 0;
+        int firstLineEnd = lineEnd(data, 0);
+        String firstLine = new String(data, 0, firstLineEnd, StandardCharsets.UTF_8).trim();
+        if (firstLine.startsWith(Journal.SNAPSHOT_HEADER)) {
+            snapshotSequence = Journal.parseSnapshotHeader(firstLine);
+            start = Math.min(data.length, firstLineEnd + 1);
+        }
+
+        int chunks = (int) Math.max(1, Math.min(4L * ForkJoinPool.getCommonPoolParallelism(), (data.length - start) / MIN_CHUNK_BYTES));
+        List<ForkJoinTask<Chunk<T>>> tasks = new ArrayList<>(chunks);
+        int from = start;
+        for (int i = 1; i <= chunks && from < data.length; i++) {
+            int to = i == chunks ? data.length : Math.min(data.length, lineEnd(data, Math.max(from, start + (int) ((long) (data.length - start) * i / chunks))) + 1);
+            int chunkFrom = from;
+            tasks.add(ForkJoinPool.commonPool().submit(() -> parseChunk(data, chunkFrom, to, parser)));
+            from = to;
+        }
+
+        List<T> records = new ArrayList<>();
+        List<String> invalidLines = new ArrayList<>();
+        for (ForkJoinTask<Chunk<T>> task : tasks) {
+            Chunk<T> chunk = task.join();
+            records.addAll(chunk.records);
+            invalidLines.addAll(chunk.invalidLines);
+        }
+        return new Result<>(snapshotSequence, records, invalidLines);
+    }
+
+    private static <T> Chunk<T> parseChunk(byte[] data, int from, int to, Function<String, T> parser) {
+        Chunk<T> chunk = new Chunk<>();
+        while (from < to) {
+            int end = lineEnd(data, from);
+            String line = new String(data, from, end - from, StandardCharsets.UTF_8).trim();
+            from = end + 1;
+            if (line.isEmpty() || line.startsWith(Journal.SNAPSHOT_HEADER)) {
+                continue;
+            }
+            try {
+                chunk.records.add(parser.apply(line));
+            } catch (IllegalArgumentException e) {
+                chunk.invalidLines.add(line);
+            }
+        }
+        return chunk;
+    }
+
+    // Index of the newline ending the line that contains from, or the end of the data
+    private static int lineEnd(byte[] data, int from) {
+        int i = from;
+        while (i < data.length && data[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+}
+
+// Journal class
+class Journal {
+    public static final String SNAPSHOT_HEADER = "#journal:";
+    public static final int COMPACTION_THRESHOLD = 1000;
+
     private final String fileName;
+    private final Metrics.Persistence metrics;
+    private BufferedWriter writer;
+    private long sequence;
+    private int recordCount;
 
-    public BusRegistration(String fileName) {
+    public Journal(String fileName, Metrics.Persistence metrics) {
         this.fileName = fileName;
+        this.metrics = metrics;
+    }
+
+    public synchronized void append(String record) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new FileWriter(fileName, true));
+            }
+            sequence++;
+            String line = sequence + " " + record;
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            recordCount++;
+            metrics.journalAppended(line.length() + 1);
+        } catch (IOException e) {
+            System.out.println("Error writing journal " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    // Applies every record newer than the snapshot the caller has just loaded.
+    public synchronized void replay(long snapshotSequence, Consumer<String> apply) {
+        sequence = Math.max(sequence, snapshotSequence);
+        if (!new File(fileName).exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                long recordSequence;
+                try {
+                    recordSequence = Long.parseLong(line.substring(0, Math.max(space, 0)));
+                } catch (NumberFormatException e) {
+                    System.out.println("Skipping invalid line in journal " + fileName + ": " + line);
+                    continue;
+                }
+                sequence = Math.max(sequence, recordSequence);
+                if (recordSequence <= snapshotSequence) continue;
+                recordCount++;
+                apply.accept(line.substring(space + 1));
+            }
+        } catch (IOException e) {
+            System.out.println("Error replaying journal " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Called once the snapshot covering every record up to getSequence() is in place.
+    public synchronized void truncate() {
+        close();
+        try {
+            new FileWriter(fileName).close();
+            recordCount = 0;
+        } catch (IOException e) {
+            System.out.println("Error truncating journal " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Error closing journal " + fileName + ": " + e.getMessage());
+        }
+        writer = null;
+    }
+
+    public static long parseSnapshotHeader(String line) {
+        try {
+            return Long.parseLong(line.substring(SNAPSHOT_HEADER.length()).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Writes the snapshot to a temporary file and swaps it in, so a crash never leaves a half-written snapshot.
+    public static boolean writeSnapshot(String fileName, long sequence, String label, SnapshotWriter body) {
+        File temp = new File(fileName + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(SNAPSHOT_HEADER + sequence);
+            writer.newLine();
+            body.write(writer);
+        } catch (IOException e) {
+            System.out.println("Error saving " + label + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            Files.move(temp.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error saving " + label + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    interface SnapshotWriter {
+        void write(BufferedWriter writer) throws IOException;
+    }
+}
+
+// Metrics class
+// Process-wide latency histograms, counters and persistence figures. Recording an operation costs two
+// nanoTime calls and a few uncontended atomic adds, so it stays on in production; -Dbus.metrics=off turns
+// it into a no-op. publish() exposes everything as MXBeans under the "BusReservation" JMX domain, and
+// dump() writes the same figures to a text file.
+class Metrics {
+    public static final boolean ENABLED = !"off".equals(System.getProperty("bus.metrics"));
+    public static final String DOMAIN = "BusReservation";
+
+    private static final Map<String, Operation> operations = new ConcurrentSkipListMap<>();
+    private static final Map<String, Persistence> stores = new ConcurrentSkipListMap<>();
+    private static volatile ReservationSystem gaugeSource;
+    private static volatile boolean published;
+
+    public interface OperationMXBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    public interface PersistenceMXBean {
+        long getSnapshotBytesWritten();
+
+        long getSnapshotBytesRead();
+
+        long getJournalBytesWritten();
+
+        long getJournalRecords();
+    }
+
+    public interface ReservationsMXBean {
+        Map<String, Integer> getOccupancy();
+
+        Map<String, Integer> getWaitlistDepth();
+
+        Map<String, Long> getCounters();
+
+        void dump(String fileName) throws IOException;
+    }
+
+    // Log-linear buckets: 32 linear steps per power of two, so every value lands in a bucket less than
+    // about 3% wide, and recording is a shift and an array increment
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        // Midpoint of the bucket's value range
+        static long valueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+            return lower + (1L << shift) / 2;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        // Concurrent records may land while this walks the buckets, so the result is approximate under load
+        long percentile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(valueOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    static class Operation implements OperationMXBean {
+        private final Histogram nanos = new Histogram();
+        // Completions by result status, e.g. RESERVED or WAITLISTED
+        private final Map<Enum<?>, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+        // Pass the value start() returned when the operation began
+        void record(long startNanos) {
+            if (ENABLED) {
+                nanos.record(System.nanoTime() - startNanos);
+            }
+        }
+
+        void record(long startNanos, Enum<?> outcome) {
+            if (ENABLED) {
+                nanos.record(System.nanoTime() - startNanos);
+                outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+            }
+        }
+
+        public long getCount() {
+            return nanos.getCount();
+        }
+
+        public double getMeanMicros() {
+            return nanos.getMean() / 1000;
+        }
+
+        public double getP50Micros() {
+            return nanos.percentile(0.5) / 1000.0;
+        }
+
+        public double getP99Micros() {
+            return nanos.percentile(0.99) / 1000.0;
+        }
+
+        public double getP999Micros() {
+            return nanos.percentile(0.999) / 1000.0;
+        }
+
+        public double getMaxMicros() {
+            return nanos.getMax() / 1000.0;
+        }
+    }
+
+    static class Persistence implements PersistenceMXBean {
+        private final LongAdder snapshotBytesWritten = new LongAdder();
+        private final LongAdder snapshotBytesRead = new LongAdder();
+        private final LongAdder journalBytesWritten = new LongAdder();
+        private final LongAdder journalRecords = new LongAdder();
+
+        void snapshotWritten(String fileName) {
+            snapshotBytesWritten.add(sizeOf(fileName));
+        }
+
+        void snapshotRead(String fileName) {
+            snapshotBytesRead.add(sizeOf(fileName));
+        }
+
+        void snapshotRead(long bytes) {
+            snapshotBytesRead.add(bytes);
+        }
+
+        void journalAppended(long bytes) {
+            journalBytesWritten.add(bytes);
+            journalRecords.increment();
+        }
+
+        private static long sizeOf(String fileName) {
+            File file = new File(fileName);
+            return file.exists() ? file.length() : 0;
+        }
+
+        public long getSnapshotBytesWritten() {
+            return snapshotBytesWritten.sum();
+        }
+
+        public long getSnapshotBytesRead() {
+            return snapshotBytesRead.sum();
+        }
+
+        public long getJournalBytesWritten() {
+            return journalBytesWritten.sum();
+        }
+
+        public long getJournalRecords() {
+            return journalRecords.sum();
+        }
+    }
+
+    private static class Reservations implements ReservationsMXBean {
+        public Map<String, Integer> getOccupancy() {
+            ReservationSystem source = gaugeSource;
+            return source == null ? Map.of() : source.getOccupancy();
+        }
+
+        public Map<String, Integer> getWaitlistDepth() {
+            ReservationSystem source = gaugeSource;
+            return source == null ? Map.of() : source.getWaitlistDepths();
+        }
+
+        public Map<String, Long> getCounters() {
+            return Metrics.getCounters();
+        }
+
+        public void dump(String fileName) throws IOException {
+            Metrics.dump(fileName);
+        }
+    }
+
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static Operation operation(String name) {
+        return operations.computeIfAbsent(name, k -> register(new Operation(), "type=Operation,name=" + k));
+    }
+
+    public static Persistence persistence(String store) {
+        return stores.computeIfAbsent(store, k -> register(new Persistence(), "type=Persistence,name=" + k));
+    }
+
+    // "operation.OUTCOME" to the number of completions with that outcome
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            for (Map.Entry<Enum<?>, LongAdder> outcome : entry.getValue().outcomes.entrySet()) {
+                values.put(entry.getKey() + "." + outcome.getKey().name(), outcome.getValue().sum());
+            }
+        }
+        return values;
+    }
+
+    // Registers every metric created so far, and any created later, with the platform MBean server.
+    // Per-bus gauges are read from the given reservation system when JMX asks for them
+    public static synchronized void publish(ReservationSystem reservationSystem) {
+        gaugeSource = reservationSystem;
+        if (published || !ENABLED) return;
+        published = true;
+        operations.forEach((name, operation) -> register(operation, "type=Operation,name=" + name));
+        stores.forEach((name, store) -> register(store, "type=Persistence,name=" + name));
+        register(new Reservations(), "type=Reservations");
+    }
+
+    private static <T> T register(T bean, String properties) {
+        if (!published) return bean;
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Error registering metrics " + properties + ": " + e.getMessage());
+        }
+        return bean;
+    }
+
+    public static void dump(String fileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write(String.format("%-32s %10s %10s %10s %10s %10s %10s%n", "# operation (us)", "count", "mean", "p50", "p99", "p999", "max"));
+            for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+                Operation operation = entry.getValue();
+                writer.write(String.format(Locale.ROOT, "%-32s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(),
+                        operation.getCount(), operation.getMeanMicros(), operation.getP50Micros(), operation.getP99Micros(),
+                        operation.getP999Micros(), operation.getMaxMicros()));
+            }
+            writer.write(String.format("%-32s %14s %14s %14s %10s%n", "# persistence (bytes)", "snapshotOut", "snapshotIn", "journalOut", "records"));
+            for (Map.Entry<String, Persistence> entry : stores.entrySet()) {
+                Persistence store = entry.getValue();
+                writer.write(String.format("%-32s %14d %14d %14d %10d%n", entry.getKey(), store.getSnapshotBytesWritten(),
+                        store.getSnapshotBytesRead(), store.getJournalBytesWritten(), store.getJournalRecords()));
+            }
+            writer.write("# counters");
+            writer.newLine();
+            for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue());
+                writer.newLine();
+            }
+            ReservationSystem source = gaugeSource;
+            if (source != null) {
+                writer.write("# bus occupied waiting");
+                writer.newLine();
+                Map<String, Integer> waiting = source.getWaitlistDepths();
+                for (Map.Entry<String, Integer> entry : new TreeMap<>(source.getOccupancy()).entrySet()) {
+                    writer.write(entry.getKey() + " " + entry.getValue() + " " + waiting.getOrDefault(entry.getKey(), 0));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
+
+// RouteIndex class
+// Readers never lock; writers are serialized by BusRegistration.
+class RouteIndex {
+    private final Map<String, NavigableMap<LocalTime, List<Bus>>> scheduled = new ConcurrentHashMap<>();
+    private final Map<String, List<Bus>> unscheduled = new ConcurrentHashMap<>();
+
+    public static String stopKey(String stop) {
+        return stop.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static String routeKey(String startPoint, String endPoint) {
+        return stopKey(startPoint) + "|" + stopKey(endPoint);
+    }
+
+    public void add(Bus bus) {
+        String key = routeKey(bus.getStartPoint(), bus.getEndPoint());
+        LocalTime departure = bus.getDepartureTime();
+        if (departure == null) {
+            unscheduled.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(bus);
+        } else {
+            scheduled.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(departure, k -> new CopyOnWriteArrayList<>())
+                    .add(bus);
+        }
+    }
+
+    public void remove(Bus bus) {
+        String key = routeKey(bus.getStartPoint(), bus.getEndPoint());
+        LocalTime departure = bus.getDepartureTime();
+        if (departure == null) {
+            List<Bus> buses = unscheduled.get(key);
+            if (buses != null && buses.remove(bus) && buses.isEmpty()) {
+                unscheduled.remove(key);
+            }
+            return;
+        }
+        NavigableMap<LocalTime, List<Bus>> byDeparture = scheduled.get(key);
+        if (byDeparture == null) return;
+        List<Bus> buses = byDeparture.get(departure);
+        if (buses != null && buses.remove(bus) && buses.isEmpty()) {
+            byDeparture.remove(departure);
+            if (byDeparture.isEmpty()) {
+                scheduled.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        scheduled.clear();
+        unscheduled.clear();
+    }
+
+    // Every bus on the route, earliest departure first; buses with an unparseable time come last
+    public List<Bus> find(String startPoint, String endPoint) {
+        String key = routeKey(startPoint, endPoint);
+        List<Bus> matchingBuses = new ArrayList<>();
+        NavigableMap<LocalTime, List<Bus>> byDeparture = scheduled.get(key);
+        if (byDeparture != null) {
+            for (List<Bus> buses : byDeparture.values()) {
+                matchingBuses.addAll(buses);
+            }
+        }
+        matchingBuses.addAll(unscheduled.getOrDefault(key, Collections.emptyList()));
+        return matchingBuses;
+    }
+
+    // Buses departing within [from, to]; a window such as 22:00-02:00 wraps past midnight
+    public List<Bus> find(String startPoint, String endPoint, LocalTime from, LocalTime to) {
+        List<Bus> matchingBuses = new ArrayList<>();
+        NavigableMap<LocalTime, List<Bus>> byDeparture = scheduled.get(routeKey(startPoint, endPoint));
+        if (byDeparture == null) {
+            return matchingBuses;
+        }
+        if (!from.isAfter(to)) {
+            collect(byDeparture.subMap(from, true, to, true), matchingBuses);
+        } else {
+            collect(byDeparture.tailMap(from, true), matchingBuses);
+            collect(byDeparture.headMap(to, true), matchingBuses);
+        }
+        return matchingBuses;
+    }
+
+    private static void collect(Map<LocalTime, List<Bus>> window, List<Bus> matchingBuses) {
+        for (List<Bus> buses : window.values()) {
+            matchingBuses.addAll(buses);
+        }
+    }
+}
+
+// JourneyPlanner class
+// Departures are indexed by stop, so a search only looks at buses leaving the stops it reaches. Buses run
+// daily; a search measures time in minutes from midnight of the day it starts, so a leg can run into the
+// next day. Buses without both a departure and an arrival time cannot be timetabled and are left out.
+class JourneyPlanner {
+    enum Order { ARRIVAL, FARE }
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int MAX_LEGS = 4;
+
+    private final Map<String, NavigableMap<Integer, List<Edge>>> departures = new ConcurrentHashMap<>();
+
+    // A bus as seen from the stop it leaves, with what the search needs worked out once
+    private static class Edge {
+        final Bus bus;
+        final String to;
+        final int durationMinutes;
+
+        Edge(Bus bus, String to) {
+            this.bus = bus;
+            this.to = to;
+            this.durationMinutes = JourneyPlanner.durationMinutes(bus);
+        }
+    }
+
+    // One bus ride within a journey, with times in minutes from the start of the search day
+    static class Leg {
+        final Bus bus;
+        final int departure;
+        final int arrival;
+
+        Leg(Bus bus, int departure, int arrival) {
+            this.bus = bus;
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public String toString() {
+            return bus.getBusNumber() + ": " + bus.getStartPoint() + " " + clock(departure) +
+                   " -> " + bus.getEndPoint() + " " + clock(arrival);
+        }
+    }
+
+    static class Journey {
+        private final List<Leg> legs;
+        private final double totalFare;
+
+        Journey(List<Leg> legs, double totalFare) {
+            this.legs = legs;
+            this.totalFare = totalFare;
+        }
+
+        public List<Leg> getLegs() {
+            return legs;
+        }
+
+        public int getDeparture() {
+            return legs.get(0).departure;
+        }
+
+        public int getArrival() {
+            return legs.get(legs.size() - 1).arrival;
+        }
+
+        public double getTotalFare() {
+            return totalFare;
+        }
+
+        public int getTransfers() {
+            return legs.size() - 1;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner route = new StringJoiner(" | ");
+            for (Leg leg : legs) {
+                route.add(leg.toString());
+            }
+            return "Depart " + clock(getDeparture()) + ", arrive " + clock(getArrival()) +
+                   ", fare " + totalFare + ", transfers " + getTransfers() + ": " + route;
+        }
+    }
+
+    // A partial journey ending at a stop; journeys share their common prefix
+    private static class Label {
+        final String stop;
+        final int arrival;
+        final double fare;
+        final Leg leg;
+        final Label previous;
+        final int legs;
+
+        Label(String stop, int arrival, double fare, Leg leg, Label previous) {
+            this.stop = stop;
+            this.arrival = arrival;
+            this.fare = fare;
+            this.leg = leg;
+            this.previous = previous;
+            this.legs = previous == null ? 0 : previous.legs + 1;
+        }
+
+        boolean visits(String stopKey) {
+            for (Label label = this; label != null; label = label.previous) {
+                if (label.stop.equals(stopKey)) return true;
+            }
+            return false;
+        }
+    }
+
+    public void add(Bus bus) {
+        if (bus.getDepartureTime() == null || bus.getArrivalTime() == null) return;
+        Edge edge = new Edge(bus, RouteIndex.stopKey(bus.getEndPoint()));
+        departures.computeIfAbsent(RouteIndex.stopKey(bus.getStartPoint()), k -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(minuteOfDay(bus.getDepartureTime()), k -> new CopyOnWriteArrayList<>())
+                .add(edge);
+    }
+
+    public void remove(Bus bus) {
+        if (bus.getDepartureTime() == null || bus.getArrivalTime() == null) return;
+        NavigableMap<Integer, List<Edge>> leaving = departures.get(RouteIndex.stopKey(bus.getStartPoint()));
+        if (leaving == null) return;
+        int minute = minuteOfDay(bus.getDepartureTime());
+        List<Edge> edges = leaving.get(minute);
+        if (edges != null && edges.removeIf(edge -> edge.bus == bus) && edges.isEmpty()) {
+            leaving.remove(minute);
+        }
+    }
+
+    public void clear() {
+        departures.clear();
+    }
+
+    // Best-first search over partial journeys, cheapest (or earliest) first, so the first k that reach the
+    // destination are the k best. A stop stops being expanded once k partial journeys that reached it are
+    // at least as good on arrival time and, when ranking by fare, on fare too. Seats are only checked for
+    // legs the search actually commits to.
+    public List<Journey> plan(String from, String to, LocalTime after, int k, Order order,
+                              int minTransferMinutes, Predicate<Bus> hasFreeSeat) {
+        List<Journey> journeys = new ArrayList<>();
+        String origin = RouteIndex.stopKey(from);
+        String destination = RouteIndex.stopKey(to);
+        if (k <= 0 || origin.equals(destination)) {
+            return journeys;
+        }
+        int start = minuteOfDay(after);
+        int latest = start + MINUTES_PER_DAY;
+        Comparator<Label> ranking = order == Order.ARRIVAL
+                ? Comparator.<Label>comparingInt(label -> label.arrival).thenComparingDouble(label -> label.fare)
+                : Comparator.<Label>comparingDouble(label -> label.fare).thenComparingInt(label -> label.arrival);
+        PriorityQueue<Label> queue = new PriorityQueue<>(ranking);
+        Map<String, List<Label>> expanded = new HashMap<>();
+        queue.add(new Label(origin, start, 0, null, null));
+
+        while (!queue.isEmpty() && journeys.size() < k) {
+            Label label = queue.poll();
+            if (label.leg != null && !hasFreeSeat.test(label.leg.bus)) {
+                continue;
+            }
+            if (label.stop.equals(destination)) {
+                journeys.add(toJourney(label));
+                continue;
+            }
+            List<Label> atStop = expanded.computeIfAbsent(label.stop, key -> new ArrayList<>());
+            if (dominators(atStop, label, order) >= k) {
+                continue;
+            }
+            atStop.add(label);
+            if (label.legs == MAX_LEGS) {
+                continue;
+            }
+            NavigableMap<Integer, List<Edge>> leaving = departures.get(label.stop);
+            if (leaving == null) {
+                continue;
+            }
+            int earliest = label.leg == null ? start : label.arrival + minTransferMinutes;
+            // Departure minutes repeat daily, so walk today's remaining departures and then the next day's
+            for (int day = earliest / MINUTES_PER_DAY; day * MINUTES_PER_DAY <= latest; day++) {
+                int midnight = day * MINUTES_PER_DAY;
+                for (Map.Entry<Integer, List<Edge>> entry : leaving.tailMap(Math.max(earliest - midnight, 0), true).entrySet()) {
+                    int departure = midnight + entry.getKey();
+                    if (departure > latest) break;
+                    for (Edge edge : entry.getValue()) {
+                        int arrival = departure + edge.durationMinutes;
+                        if (arrival > latest || label.visits(edge.to)) continue;
+                        Label extended = new Label(edge.to, arrival, label.fare + edge.bus.getFare(), new Leg(edge.bus, departure, arrival), label);
+                        List<Label> atNext = expanded.get(edge.to);
+                        if (atNext == null || dominators(atNext, extended, order) < k) {
+                            queue.add(extended);
+                        }
+                    }
+                }
+            }
+        }
+        return journeys;
+    }
+
+    private static int dominators(List<Label> atStop, Label label, Order order) {
+        int count = 0;
+        for (Label other : atStop) {
+            if (other.arrival <= label.arrival && (order == Order.ARRIVAL || other.fare <= label.fare)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Journey toJourney(Label label) {
+        LinkedList<Leg> legs = new LinkedList<>();
+        for (Label current = label; current.leg != null; current = current.previous) {
+            legs.addFirst(current.leg);
+        }
+        return new Journey(new ArrayList<>(legs), label.fare);
+    }
+
+    // Arrival before departure means the bus arrives the next day
+    static int durationMinutes(Bus bus) {
+        int minutes = minuteOfDay(bus.getArrivalTime()) - minuteOfDay(bus.getDepartureTime());
+        return minutes < 0 ? minutes + MINUTES_PER_DAY : minutes;
+    }
+
+    static int minuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    // "HH:mm", with "+n" for each day after the search day
+    static String clock(int minutes) {
+        int day = minutes / MINUTES_PER_DAY;
+        String time = String.format("%02d:%02d", minutes % MINUTES_PER_DAY / 60, minutes % 60);
+        return day == 0 ? time : time + "+" + day;
+    }
+}
+
+// BusRegistration class
+class BusRegistration {
+    private static final Metrics.Operation SEARCH = Metrics.operation("searchBuses");
+    private static final Metrics.Operation PLAN = Metrics.operation("planJourneys");
+    private static final Metrics.Operation SAVE = Metrics.operation("buses.saveToFile");
+    private static final Metrics.Operation LOAD = Metrics.operation("buses.loadFromFile");
+    private static final Metrics.Persistence PERSISTENCE = Metrics.persistence("buses");
+
+    private final Map<String, Bus> busRegistry = new ConcurrentHashMap<>();
+    private final RouteIndex routeIndex = new RouteIndex();
+    private final JourneyPlanner journeyPlanner = new JourneyPlanner();
+    private final String fileName;
+    private final Journal journal;
+
+    public BusRegistration(String fileName) {
+        this.fileName = fileName;
+        this.journal = new Journal(fileName + ".journal", PERSISTENCE);
+    }
+
+    // Returns false when a bus with the same number is already registered
+    public synchronized boolean registerBus(Bus bus) {
+        if (busRegistry.containsKey(bus.getBusNumber())) {
+            return false;
+        }
+        putBus(bus);
+        journal.append("REGISTER " + bus.toDataString());
+        return true;
+    }
+
+    // Bulk path: nothing is journalled, so the caller saves once the batch is in. Returns false for
+    // each bus whose number was already taken
+    public synchronized boolean[] registerBuses(List<Bus> buses) {
+        boolean[] added = new boolean[buses.size()];
+        for (int i = 0; i < added.length; i++) {
+            Bus bus = buses.get(i);
+            if (!busRegistry.containsKey(bus.getBusNumber())) {
+                putBus(bus);
+                added[i] = true;
+            }
+        }
+        return added;
+    }
+
+    public Bus getBusByNumber(String busNumber) {
+        return busRegistry.get(busNumber);
+    }
+
+    public List<Bus> getAllBuses() {
+        return new ArrayList<>(busRegistry.values());
+    }
+
+    public List<Bus> searchBuses(String startPoint, String endPoint) {
+        long started = Metrics.start();
+        try {
+            return routeIndex.find(startPoint, endPoint);
+        } finally {
+            SEARCH.record(started);
+        }
+    }
+
+    public List<Bus> searchBuses(String startPoint, String endPoint, LocalTime from, LocalTime to) {
+        long started = Metrics.start();
+        try {
+            return routeIndex.find(startPoint, endPoint, from, to);
+        } finally {
+            SEARCH.record(started);
+        }
+    }
+
+    // The k best connections leaving at or after the given time, changing buses where needed
+    public List<JourneyPlanner.Journey> planJourneys(String startPoint, String endPoint, LocalTime after, int k,
+                                                     JourneyPlanner.Order order, int minTransferMinutes, Predicate<Bus> hasFreeSeat) {
+        long started = Metrics.start();
+        try {
+            return journeyPlanner.plan(startPoint, endPoint, after, k, order, minTransferMinutes, hasFreeSeat);
+        } finally {
+            PLAN.record(started);
+        }
+    }
+
+    private void putBus(Bus bus) {
+        Bus previous = busRegistry.put(bus.getBusNumber(), bus);
+        if (previous != null) {
+            routeIndex.remove(previous);
+            journeyPlanner.remove(previous);
+        }
+        routeIndex.add(bus);
+        journeyPlanner.add(bus);
+    }
+
+    public void viewAllBuses() {
+        if (busRegistry.isEmpty()) {
+            System.out.println("No buses registered.");
+        } else {
+            System.out.println("Registered Buses:");
+            for (Bus bus : busRegistry.values()) {
+                System.out.println(bus);
+            }
+        }
+    }
+
+    public synchronized void saveToFile() {
+        long started = Metrics.start();
+        try {
+            boolean saved = Journal.writeSnapshot(fileName, journal.getSequence(), "buses", writer -> {
+                for (Bus bus : busRegistry.values()) {
+                    writer.write(bus.toDataString());
+                    writer.newLine();
+                }
+            });
+            if (saved) {
+                PERSISTENCE.snapshotWritten(fileName);
+                journal.truncate();
+            }
+        } finally {
+            SAVE.record(started);
+        }
+    }
+
+    public synchronized void compactIfNeeded() {
+        if (journal.getRecordCount() >= Journal.COMPACTION_THRESHOLD) {
+            saveToFile();
+        }
+    }
+
+    // Lines are parsed in parallel; the buses are then added in file order
+    public synchronized void loadFromFile() {
+        long started = Metrics.start();
+        try {
+            long snapshotSequence = 0;
+            try {
+                DataFileParser.Result<Bus> file = DataFileParser.parse(fileName, Bus::fromDataString);
+                snapshotSequence = file.snapshotSequence;
+                for (Bus bus : file.records) {
+                    putBus(bus);
+                }
+                for (String line : file.invalidLines) {
+                    System.out.println("Skipping invalid line in bus file: " + line);
+                }
+            } catch (IOException e) {
+                System.out.println("Error loading buses: " + e.getMessage());
+            }
+            PERSISTENCE.snapshotRead(fileName);
+            journal.replay(snapshotSequence, this::applyJournalRecord);
+        } finally {
+            LOAD.record(started);
+        }
+    }
+
+    private void applyJournalRecord(String record) {
+        try {
+            if (!record.startsWith("REGISTER ")) {
+                throw new IllegalArgumentException("Unknown journal record: " + record);
+            }
+            Bus bus = Bus.fromDataString(record.substring(9));
+            putBus(bus);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Skipping invalid record in bus journal: " + record);
+        }
+    }
+}
+
+// CustomerRegistration class
+// Customers are keyed by ID, and IDs are handed out in registration order, so ID order doubles as the
+// registration order for listings. Mobile numbers and emails are unique; names are not. The customers
+// themselves live in a CustomerStore.
+//
+// A cluster worker's directory holds a WORKER_MARKER file, written by the router. There the router hands out
+// the IDs, so registering without one is refused whether it comes from the API, a script or the menu: an ID
+// of the worker's own would collide with a router-assigned one and place the customer on a worker that does not
+// own it.
+class CustomerRegistration {
+    static final String WORKER_MARKER = "cluster-worker";
+    private static final Metrics.Operation SAVE = Metrics.operation("customers.saveToFile");
+    private static final Metrics.Operation LOAD = Metrics.operation("customers.loadFromFile");
+    private static final Metrics.Persistence PERSISTENCE = Metrics.persistence("customers");
+
+    private final CustomerStore store;
+    private final String fileName;
+    private final Journal journal;
+    private final boolean assignsIds;
+    private int lastId;
+    private boolean assignedMissingIds;
+
+    public CustomerRegistration(String fileName) {
+        this(fileName, CustomerStore.create(System.getProperty("bus.customers.store")));
+    }
+
+    public CustomerRegistration(String fileName, CustomerStore store) {
+        this.fileName = fileName;
+        this.store = store;
+        this.journal = new Journal(fileName + ".journal", PERSISTENCE);
+        this.assignsIds = !Files.exists(Paths.get(fileName).toAbsolutePath().resolveSibling(WORKER_MARKER));
+    }
+
+    // False on a cluster worker, where only registerCustomerWithId may add customers
+    public boolean assignsIds() {
+        return assignsIds;
+    }
+
+    private void requireAssignsIds() {
+        if (!assignsIds) {
+            throw new IllegalStateException("This is a cluster worker; register customers through the cluster router.");
+        }
+    }
+
+    // Assigns the next customer ID and returns the registered customer, or null when the mobile number
+    // or email already belongs to someone
+    public synchronized Customer registerCustomer(Customer customer) {
+        requireAssignsIds();
+        if (store.byMobile(customer.getMobileNumber()) != null || store.byEmail(customer.getEmail()) != null) {
+            return null;
+        }
+        Customer registered = customer.withId(++lastId);
+        put(registered);
+        journal.append("REGISTER " + registered.toRecordString());
+        return registered;
+    }
+
+    // Stores a customer whose ID was assigned elsewhere, as the cluster router does. Storing the same customer
+    // again returns the stored copy, so a retried write is harmless; null when the ID, mobile number or email
+    // belongs to someone else
+    public synchronized Customer registerCustomerWithId(Customer customer) {
+        Customer existing = store.byId(customer.getId());
+        if (existing != null) {
+            return existing.toRecordString().equals(customer.toRecordString()) ? existing : null;
+        }
+        if (store.byMobile(customer.getMobileNumber()) != null || store.byEmail(customer.getEmail()) != null) {
+            return null;
+        }
+        put(customer);
+        journal.append("REGISTER " + customer.toRecordString());
+        return customer;
+    }
+
+    // Bulk path: nothing is journalled, so the caller saves once the batch is in. Duplicates come back as null
+    public synchronized List<Customer> registerCustomers(List<Customer> customers) {
+        requireAssignsIds();
+        List<Customer> registered = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            if (store.byMobile(customer.getMobileNumber()) != null || store.byEmail(customer.getEmail()) != null) {
+                registered.add(null);
+            } else {
+                Customer withId = customer.withId(++lastId);
+                put(withId);
+                registered.add(withId);
+            }
+        }
+        return registered;
+    }
+
+    // The registered customer with the same mobile number or email, registering one if there is none
+    public synchronized Customer resolve(Customer customer) {
+        Customer existing = store.byMobile(customer.getMobileNumber());
+        if (existing == null) {
+            existing = store.byEmail(customer.getEmail());
+        }
+        return existing != null ? existing : registerCustomer(customer);
+    }
+
+    public Customer getCustomerByName(String name) {
+        return store.byName(name);
+    }
+
+    public Customer getCustomerById(int id) {
+        return store.byId(id);
+    }
+
+    public Customer getCustomerByMobile(String mobileNumber) {
+        return store.byMobile(mobileNumber);
+    }
+
+    public Customer getCustomerByEmail(String email) {
+        return store.byEmail(email);
+    }
+
+    // Looks the key up as a mobile number, then an email, then a name
+    public Customer findCustomer(String key) {
+        Customer customer = store.byMobile(key);
+        if (customer == null) {
+            customer = store.byEmail(key);
+        }
+        return customer != null ? customer : store.byName(key);
+    }
+
+    public int getCustomerCount() {
+        return store.size();
+    }
+
+    // Newest first, starting just below the cursor ID (0 starts at the newest). The stream walks the
+    // store itself, so listing never copies it.
+    public Stream<Customer> streamCustomers(int beforeId) {
+        return store.newestFirst(beforeId);
+    }
+
+    // Pass the ID of the last customer on one page as the cursor for the next
+    public List<Customer> getCustomerPage(int beforeId, int limit) {
+        return streamCustomers(beforeId).limit(limit).collect(Collectors.toList());
+    }
+
+    private void put(Customer customer) {
+        store.put(customer);
+        lastId = Math.max(lastId, customer.getId());
+    }
+
+    // "id,<customer>", or a bare customer from files written before IDs were assigned, which comes back with ID 0
+    private static Customer parseRecord(String record) {
+        if (DataFields.count(record) == 5) {
+            return Customer.fromDataString(record);
+        }
+        return Customer.fromRecordString(record);
+    }
+
+    private void putRecord(Customer customer) {
+        if (customer.getId() == 0) {
+            assignedMissingIds = true;
+            customer = customer.withId(++lastId);
+        }
+        put(customer);
+    }
+
+    public void viewAllCustomers() {
+        if (store.size() == 0) {
+            System.out.println("No customers registered.");
+        } else {
+            System.out.println("Registered Customers (Newest to Oldest):");
+            streamCustomers(0).forEach(System.out::println);
+        }
+    }
+
+    public synchronized void saveToFile() {
+        long started = Metrics.start();
+        try {
+            boolean saved = Journal.writeSnapshot(fileName, journal.getSequence(), "customers", writer -> {
+                for (Customer customer : (Iterable<Customer>) store.oldestFirst()::iterator) {
+                    writer.write(customer.toRecordString());
+                    writer.newLine();
+                }
+            });
+            if (saved) {
+                PERSISTENCE.snapshotWritten(fileName);
+                journal.truncate();
+            }
+        } finally {
+            SAVE.record(started);
+        }
+    }
+
+    public synchronized void compactIfNeeded() {
+        if (journal.getRecordCount() >= Journal.COMPACTION_THRESHOLD) {
+            saveToFile();
+        }
+    }
+
+    // Lines are parsed in parallel; the customers are then added in file order, so records without an ID
+    // get the same IDs a sequential read would give them
+    public synchronized void loadFromFile() {
+        long started = Metrics.start();
+        try {
+            long snapshotSequence = 0;
+            try {
+                DataFileParser.Result<Customer> file = DataFileParser.parse(fileName, CustomerRegistration::parseRecord);
+                snapshotSequence = file.snapshotSequence;
+                for (Customer customer : file.records) {
+                    putRecord(customer);
+                }
+                for (String line : file.invalidLines) {
+                    System.out.println("Skipping invalid line in customer file: " + line);
+                }
+            } catch (IOException e) {
+                System.out.println("Error loading customers: " + e.getMessage());
+            }
+            PERSISTENCE.snapshotRead(fileName);
+            journal.replay(snapshotSequence, this::applyJournalRecord);
+            // IDs handed out to records written without one only become stable once they are saved
+            if (assignedMissingIds) {
+                assignedMissingIds = false;
+                saveToFile();
+            }
+        } finally {
+            LOAD.record(started);
+        }
+    }
+
+    private void applyJournalRecord(String record) {
+        try {
+            if (!record.startsWith("REGISTER ")) {
+                throw new IllegalArgumentException("Unknown journal record: " + record);
+            }
+            putRecord(parseRecord(record.substring(9)));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Skipping invalid record in customer journal: " + record);
+        }
+    }
+}
+
+// CustomerStore interface
+// Where CustomerRegistration keeps its customers. Writers are serialised by the registration; reads may run
+// concurrently with a write. Select the backend with -Dbus.customers.store=map|columnar.
+interface CustomerStore {
+    // Adds the customer, replacing any with the same ID, and indexes its mobile number, email and name
+    void put(Customer customer);
+
+    Customer byId(int id);
+
+    Customer byMobile(String mobileNumber);
+
+    Customer byEmail(String email);
+
+    // The latest customer registered under the name
+    Customer byName(String name);
+
+    int size();
+
+    // Newest first, starting just below the cursor ID (0 starts at the newest)
+    Stream<Customer> newestFirst(int beforeId);
+
+    // Oldest first, for writing a snapshot
+    Stream<Customer> oldestFirst();
+
+    static CustomerStore create(String kind) {
+        if (kind == null || kind.equals("map")) {
+            return new MapCustomerStore();
+        }
+        if (kind.equals("columnar")) {
+            return new ColumnarCustomerStore();
+        }
+        throw new IllegalArgumentException("Unknown customer store: " + kind);
+    }
+}
+
+// MapCustomerStore class
+// One Customer object per customer, indexed by concurrent maps. The ID map doubles as the registration order.
+class MapCustomerStore implements CustomerStore {
+    private final ConcurrentNavigableMap<Integer, Customer> customersById = new ConcurrentSkipListMap<>();
+    private final Map<String, Customer> customersByMobile = new ConcurrentHashMap<>();
+    private final Map<String, Customer> customersByEmail = new ConcurrentHashMap<>();
+    private final Map<String, Customer> customersByName = new ConcurrentHashMap<>();
+
+    public void put(Customer customer) {
+        customersById.put(customer.getId(), customer);
+        customersByMobile.put(customer.getMobileNumber(), customer);
+        customersByEmail.put(customer.getEmail(), customer);
+        customersByName.put(customer.getName(), customer);
+    }
+
+    public Customer byId(int id) {
+        return customersById.get(id);
+    }
+
+    public Customer byMobile(String mobileNumber) {
+        return customersByMobile.get(mobileNumber);
+    }
+
+    public Customer byEmail(String email) {
+        return customersByEmail.get(email);
+    }
+
+    public Customer byName(String name) {
+        return customersByName.get(name);
+    }
+
+    public int size() {
+        return customersById.size();
+    }
+
+    // The stream walks the map itself, so listing never copies it
+    public Stream<Customer> newestFirst(int beforeId) {
+        NavigableMap<Integer, Customer> older = beforeId > 0 ? customersById.headMap(beforeId, false) : customersById;
+        return older.descendingMap().values().stream();
+    }
+
+    public Stream<Customer> oldestFirst() {
+        return customersById.values().stream();
+    }
+}
+
+// ColumnarCustomerStore class
+// Customers held column by column, with no object per customer. Each stored customer gets the next slot, and an
+// open-addressing table maps IDs to slots, so the columns grow with the customers held rather than with the
+// largest ID (a cluster worker holds only the IDs it owns). Name, mobile number and email are UTF-8 in a shared,
+// append-only byte arena, one record per customer; the city is a code into a dictionary and the age a byte. The
+// three lookups are open-addressing tables of IDs that compare keys against the arena. The stored IDs are also
+// kept sorted, so listing pages over them instead of over every possible ID. Getters hand out StoredCustomer
+// flyweights that decode a field only when it is asked for.
+//
+// Writers hold the stamped lock exclusively. Readers read optimistically and retry under the read lock if a
+// write got in; columns and the slot table are replaced rather than resized in place and arena bytes are never
+// rewritten, so an optimistic read can be stale but never torn. The sorted IDs are only read under the lock.
+class ColumnarCustomerStore implements CustomerStore {
+    private static final int PAGE_BYTES = 1 << 20;
+    static final int NAME = 0;
+    static final int MOBILE = 1;
+    static final int EMAIL = 2;
+    // Ages above this are kept in a side map
+    private static final int MAX_BYTE_AGE = 254;
+    private static final int AGE_OVERFLOW = 255;
+
+    private final StampedLock lock = new StampedLock();
+    // Pairs of (ID, slot); an ID of 0 marks a free entry
+    private int[] slotTable = new int[2048];
+    // Arena position of each slot's record, (page << 32) | offset
+    private long[] records = new long[1024];
+    private int[] cityCodes = new int[1024];
+    private byte[] ages = new byte[1024];
+    // The stored IDs in ascending order; the first size entries are used
+    private int[] sortedIds = new int[1024];
+    private final Map<Integer, Integer> largeAges = new ConcurrentHashMap<>();
+    private volatile byte[][] pages = {new byte[PAGE_BYTES]};
+    // Position 0 of page 0 is never used, so a record reference is never 0
+    private int pageCount = 1;
+    private int pageOffset = 1;
+    private volatile String[] cities = new String[16];
+    private final Map<String, Integer> cityDictionary = new HashMap<>();
+    private final KeyIndex byMobile = new KeyIndex(MOBILE);
+    private final KeyIndex byEmail = new KeyIndex(EMAIL);
+    private final KeyIndex byName = new KeyIndex(NAME);
+    private int size;
+
+    public void put(Customer customer) {
+        int id = customer.getId();
+        if (id <= 0) {
+            throw new IllegalArgumentException("Only registered customers can be stored: " + customer);
+        }
+        byte[] name = customer.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] mobile = customer.getMobileNumber().getBytes(StandardCharsets.UTF_8);
+        byte[] email = customer.getEmail().getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(slotTable, id);
+            if (slot < 0) {
+                slot = addSlot(id);
+            }
+            records[slot] = append(name, mobile, email);
+            cityCodes[slot] = cityCode(customer.getCity());
+            int age = customer.getAge();
+            if (age >= 0 && age <= MAX_BYTE_AGE) {
+                ages[slot] = (byte) age;
+                largeAges.remove(id);
+            } else {
+                ages[slot] = (byte) AGE_OVERFLOW;
+                largeAges.put(id, age);
+            }
+            byMobile.put(id, mobile);
+            byEmail.put(id, email);
+            byName.put(id, name);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public Customer byId(int id) {
+        return record(id) == 0 ? null : new StoredCustomer(this, id);
+    }
+
+    public Customer byMobile(String mobileNumber) {
+        return lookup(byMobile, mobileNumber);
+    }
+
+    public Customer byEmail(String email) {
+        return lookup(byEmail, email);
+    }
+
+    public Customer byName(String name) {
+        return lookup(byName, name);
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Each step binary-searches the sorted IDs for the next one, so a page costs its own length times log n and a
+    // customer stored mid-listing neither repeats nor shifts the ones still to come
+    public Stream<Customer> newestFirst(int beforeId) {
+        long from = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+        return IntStream.iterate(idBefore(from), id -> id > 0, this::idBefore).mapToObj(this::byId).filter(Objects::nonNull);
+    }
+
+    public Stream<Customer> oldestFirst() {
+        return IntStream.iterate(idAfter(0), id -> id > 0, this::idAfter).mapToObj(this::byId).filter(Objects::nonNull);
+    }
+
+    // The largest stored ID below the bound, or 0
+    private int idBefore(long bound) {
+        long stamp = lock.readLock();
+        try {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sortedIds[middle] < bound) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low == 0 ? 0 : sortedIds[low - 1];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The smallest stored ID above the bound, or 0
+    private int idAfter(int bound) {
+        long stamp = lock.readLock();
+        try {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sortedIds[middle] <= bound) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low == size ? 0 : sortedIds[low];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The slot holding the ID, or -1. Safe to run optimistically on a table read once: tables are swapped whole
+    private static int slotOf(int[] table, int id) {
+        int mask = (table.length >>> 1) - 1;
+        int entry = hash(id) & mask;
+        for (int probes = 0; probes <= mask && table[entry << 1] != 0; probes++) {
+            if (table[entry << 1] == id) {
+                return table[(entry << 1) + 1];
+            }
+            entry = (entry + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Caller holds the write lock. Gives a new ID the next slot and files it in the slot table and the sorted IDs
+    private int addSlot(int id) {
+        int slot = size;
+        if (slot == records.length) {
+            int length = records.length * 2;
+            records = Arrays.copyOf(records, length);
+            cityCodes = Arrays.copyOf(cityCodes, length);
+            ages = Arrays.copyOf(ages, length);
+            sortedIds = Arrays.copyOf(sortedIds, length);
+        }
+        if ((size + 1) * 4 > slotTable.length) {
+            int[] table = new int[slotTable.length * 2];
+            for (int entry = 0; entry < slotTable.length; entry += 2) {
+                if (slotTable[entry] != 0) {
+                    fileSlot(table, slotTable[entry], slotTable[entry + 1]);
+                }
+            }
+            slotTable = table;
+        }
+        fileSlot(slotTable, id, slot);
+        // IDs mostly arrive in ascending order, so this is usually an append
+        int at = size;
+        while (at > 0 && sortedIds[at - 1] > id) {
+            at--;
+        }
+        System.arraycopy(sortedIds, at, sortedIds, at + 1, size - at);
+        sortedIds[at] = id;
+        size++;
+        return slot;
+    }
+
+    private static void fileSlot(int[] table, int id, int slot) {
+        int mask = (table.length >>> 1) - 1;
+        int entry = hash(id) & mask;
+        while (table[entry << 1] != 0) {
+            entry = (entry + 1) & mask;
+        }
+        table[(entry << 1) + 1] = slot;
+        table[entry << 1] = id;
+    }
+
+    private Customer lookup(KeyIndex index, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.tryOptimisticRead();
+        int id;
+        try {
+            id = index.get(bytes);
+        } catch (RuntimeException e) {
+            // A write moved things under the optimistic read; the locked retry below sees a consistent store
+            id = 0;
+            stamp = 0;
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                id = index.get(bytes);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return id == 0 ? null : new StoredCustomer(this, id);
+    }
+
+    private long record(int id) {
+        long stamp = lock.tryOptimisticRead();
+        long record = id > 0 ? recordOf(slotTable, records, id) : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                record = id > 0 ? recordOf(slotTable, records, id) : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return record;
+    }
+
+    // 0 when the ID is not stored, or when a stale read pairs a slot with a column it does not reach yet
+    private static long recordOf(int[] table, long[] columns, int id) {
+        int slot = slotOf(table, id);
+        return slot >= 0 && slot < columns.length ? columns[slot] : 0;
+    }
+
+    String field(int id, int field) {
+        long record = record(id);
+        byte[] page = pages[(int) (record >>> 32)];
+        int offset = skipFields(page, (int) record, field);
+        int length = readLength(page, offset);
+        return new String(page, offset + lengthBytes(length), length, StandardCharsets.UTF_8);
+    }
+
+    String city(int id) {
+        long stamp = lock.readLock();
+        try {
+            return cities[cityCodes[slotOf(slotTable, id)]];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int age(int id) {
+        long stamp = lock.readLock();
+        try {
+            int age = Byte.toUnsignedInt(ages[slotOf(slotTable, id)]);
+            return age == AGE_OVERFLOW ? largeAges.get(id) : age;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Caller holds the write lock. Each field is a varint length followed by its bytes
+    private long append(byte[]... fields) {
+        int length = 0;
+        for (byte[] field : fields) {
+            length += lengthBytes(field.length) + field.length;
+        }
+        byte[][] current = pages;
+        if (pageOffset + length > current[pageCount - 1].length) {
+            if (pageCount == current.length) {
+                current = Arrays.copyOf(current, pageCount * 2);
+            }
+            current[pageCount++] = new byte[Math.max(PAGE_BYTES, length)];
+            pages = current;
+            pageOffset = 0;
+        }
+        byte[] page = current[pageCount - 1];
+        long record = ((long) (pageCount - 1) << 32) | pageOffset;
+        for (byte[] field : fields) {
+            int value = field.length;
+            while (value >= 0x80) {
+                page[pageOffset++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            page[pageOffset++] = (byte) value;
+            System.arraycopy(field, 0, page, pageOffset, field.length);
+            pageOffset += field.length;
+        }
+        return record;
+    }
+
+    private int cityCode(String city) {
+        Integer code = cityDictionary.get(city);
+        if (code != null) {
+            return code;
+        }
+        code = cityDictionary.size();
+        String[] current = cities;
+        if (code == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[code] = city;
+        cities = current;
+        cityDictionary.put(city, code);
+        return code;
+    }
+
+    private static int skipFields(byte[] page, int offset, int fields) {
+        for (int i = 0; i < fields; i++) {
+            int length = readLength(page, offset);
+            offset += lengthBytes(length) + length;
+        }
+        return offset;
+    }
+
+    private static int readLength(byte[] page, int offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[offset++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int lengthBytes(int length) {
+        int bytes = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static int hash(int id) {
+        int hash = id * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // Open addressing over IDs with linear probing; a key maps to the ID it was last put with
+    private final class KeyIndex {
+        private final int field;
+        private int[] ids = new int[1024];
+        private int[] hashes = new int[1024];
+        private int count;
+
+        KeyIndex(int field) {
+            this.field = field;
+        }
+
+        // Caller holds the write lock
+        void put(int id, byte[] key) {
+            if ((count + 1) * 2 > ids.length) {
+                resize();
+            }
+            int hash = hash(key, 0, key.length);
+            int mask = ids.length - 1;
+            int slot = hash & mask;
+            while (ids[slot] != 0) {
+                if (hashes[slot] == hash && matches(ids[slot], key)) {
+                    ids[slot] = id;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            ids[slot] = id;
+            count++;
+        }
+
+        // 0 when absent. Safe to run optimistically: the tables are swapped whole on resize
+        int get(byte[] key) {
+            int[] currentIds = ids;
+            int[] currentHashes = hashes;
+            if (currentIds.length != currentHashes.length) {
+                return 0;
+            }
+            int hash = hash(key, 0, key.length);
+            int mask = currentIds.length - 1;
+            int slot = hash & mask;
+            for (int probes = 0; probes < currentIds.length && currentIds[slot] != 0; probes++) {
+                if (currentHashes[slot] == hash && matches(currentIds[slot], key)) {
+                    return currentIds[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        private boolean matches(int id, byte[] key) {
+            byte[][] currentPages = pages;
+            long record = recordOf(slotTable, records, id);
+            if (record == 0) {
+                return false;
+            }
+            int page = (int) (record >>> 32);
+            if (page >= currentPages.length || currentPages[page] == null) {
+                return false;
+            }
+            byte[] bytes = currentPages[page];
+            int offset = skipFields(bytes, (int) record, field);
+            int length = readLength(bytes, offset);
+            offset += lengthBytes(length);
+            return length == key.length && offset + length <= bytes.length && Arrays.equals(bytes, offset, offset + length, key, 0, key.length);
+        }
+
+        private void resize() {
+            int[] oldIds = ids;
+            int[] oldHashes = hashes;
+            int[] newIds = new int[oldIds.length * 2];
+            int[] newHashes = new int[newIds.length];
+            int mask = newIds.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] == 0) continue;
+                int slot = oldHashes[i] & mask;
+                while (newIds[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newIds[slot] = oldIds[i];
+                newHashes[slot] = oldHashes[i];
+            }
+            hashes = newHashes;
+            ids = newIds;
+        }
+    }
+}
+
+// StoredCustomer class
+// A customer in a ColumnarCustomerStore: just the store and the ID, with each field decoded on demand
+final class StoredCustomer extends Customer {
+    private final ColumnarCustomerStore store;
+
+    StoredCustomer(ColumnarCustomerStore store, int id) {
+        super(id);
+        this.store = store;
+    }
+
+    @Override
+    public String getName() {
+        return store.field(getId(), ColumnarCustomerStore.NAME);
+    }
+
+    @Override
+    public String getMobileNumber() {
+        return store.field(getId(), ColumnarCustomerStore.MOBILE);
+    }
+
+    @Override
+    public String getEmail() {
+        return store.field(getId(), ColumnarCustomerStore.EMAIL);
+    }
+
+    @Override
+    public String getCity() {
+        return store.city(getId());
+    }
+
+    @Override
+    public int getAge() {
+        return store.age(getId());
+    }
+}
+
+// BookingResult class
+class BookingResult {
+    enum Status {
+        RESERVED, WAITLISTED, ALREADY_WAITLISTED, SEATS_AVAILABLE, NOT_ENOUGH_SEATS, CANCELLED, NOT_RESERVED,
+        WITHDRAWN, NOT_WAITLISTED, NO_SUCH_BUS, HELD, NO_SUCH_HOLD
+    }
+
+    private final Status status;
+    private final List<Integer> seats;
+    private final int position;
+    private final List<Customer> promotedCustomers;
+    private final long holdId;
+
+    private BookingResult(Status status, List<Integer> seats, int position, List<Customer> promotedCustomers, long holdId) {
+        this.status = status;
+        this.seats = seats;
+        this.position = position;
+        this.promotedCustomers = promotedCustomers;
+        this.holdId = holdId;
+    }
+
+    public static BookingResult reserved(int seat) {
+        return new BookingResult(Status.RESERVED, List.of(seat), 0, List.of(), 0);
+    }
+
+    public static BookingResult reserved(List<Integer> seats) {
+        return new BookingResult(Status.RESERVED, seats, 0, List.of(), 0);
+    }
+
+    public static BookingResult waitlisted(Status status, int position) {
+        return new BookingResult(status, List.of(), position, List.of(), 0);
+    }
+
+    public static BookingResult cancelled(List<Integer> seats, List<Customer> promotedCustomers) {
+        return new BookingResult(Status.CANCELLED, seats, 0, promotedCustomers, 0);
+    }
+
+    public static BookingResult withdrawn(List<Customer> promotedCustomers) {
+        return new BookingResult(Status.WITHDRAWN, List.of(), 0, promotedCustomers, 0);
+    }
+
+    public static BookingResult held(long holdId, int seat) {
+        return new BookingResult(Status.HELD, List.of(seat), 0, List.of(), holdId);
+    }
+
+    public static BookingResult of(Status status) {
+        return new BookingResult(status, List.of(), 0, List.of(), 0);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // Seat reserved or first seat freed; -1 when no seat was involved
+    public int getSeat() {
+        return seats.isEmpty() ? -1 : seats.get(0);
+    }
+
+    // Every seat reserved for a group or freed by a cancellation
+    public List<Integer> getSeats() {
+        return seats;
+    }
+
+    // Place on the waiting list for WAITLISTED and ALREADY_WAITLISTED; 0 otherwise
+    public int getPosition() {
+        return position;
+    }
+
+    // First waitlisted customer moved into a seat by a cancellation, or by a withdrawal that let a waiting group fit; or null
+    public Customer getPromotedCustomer() {
+        return promotedCustomers.isEmpty() ? null : promotedCustomers.get(0);
+    }
+
+    public List<Customer> getPromotedCustomers() {
+        return promotedCustomers;
+    }
+
+    // Pass to confirmHold or releaseHold for a HELD result; 0 otherwise
+    public long getHoldId() {
+        return holdId;
+    }
+}
+
+// SeatMap class
+class SeatMap {
+    private static final int NO_SEAT = -1;
+
+    private final BitSet occupied = new BitSet();
+    private final Map<Integer, Integer> firstSeatByCustomer = new HashMap<>();
+    private int[] occupants;
+    private int[] nextSeatOfCustomer;
+    private int occupiedCount;
+    private int version;
+
+    public SeatMap(int capacity) {
+        occupants = new int[Math.max(capacity, 1)];
+        nextSeatOfCustomer = new int[occupants.length];
+    }
+
+    public int size() {
+        return occupiedCount;
+    }
+
+    public boolean isEmpty() {
+        return occupiedCount == 0;
+    }
+
+    public boolean contains(int customerId) {
+        return firstSeatByCustomer.containsKey(customerId);
+    }
+
+    // Seat numbers are 1-based; returns the seat given to the customer
+    public int assign(int customerId) {
+        int seat = occupied.nextClearBit(0) + 1;
+        assign(customerId, seat);
+        return seat;
+    }
+
+    public boolean assign(int customerId, int seat) {
+        int index = seat - 1;
+        if (index < 0 || occupied.get(index)) {
+            return false;
+        }
+        ensureCapacity(index + 1);
+        occupied.set(index);
+        occupants[index] = customerId;
+        // A customer holding several seats keeps them chained through nextSeatOfCustomer
+        Integer previousFirst = firstSeatByCustomer.put(customerId, index);
+        nextSeatOfCustomer[index] = previousFirst == null ? NO_SEAT : previousFirst;
+        occupiedCount++;
+        version++;
+        return true;
+    }
+
+    // First seat of the lowest run of consecutive free seats within the capacity, or -1 when there is none
+    public int findFreeRun(int length, int capacity) {
+        int index = occupied.nextClearBit(0);
+        while (index + length <= capacity) {
+            int nextTaken = occupied.nextSetBit(index);
+            if (nextTaken < 0 || nextTaken - index >= length) {
+                return index + 1;
+            }
+            index = occupied.nextClearBit(nextTaken);
+        }
+        return NO_SEAT;
+    }
+
+    // Frees one of the customer's seats and returns its number, or -1 if they hold none
+    public int release(int customerId) {
+        Integer index = firstSeatByCustomer.get(customerId);
+        if (index == null) {
+            return NO_SEAT;
+        }
+        int next = nextSeatOfCustomer[index];
+        if (next == NO_SEAT) {
+            firstSeatByCustomer.remove(customerId);
+        } else {
+            firstSeatByCustomer.put(customerId, next);
+        }
+        occupied.clear(index);
+        occupants[index] = 0;
+        occupiedCount--;
+        version++;
+        return index + 1;
+    }
+
+    // Frees this particular seat, which must belong to the customer; returns false if it does not
+    public boolean releaseSeat(int customerId, int seat) {
+        int index = seat - 1;
+        Integer first = firstSeatByCustomer.get(customerId);
+        if (first == null || index < 0 || index >= occupants.length || occupants[index] != customerId) {
+            return false;
+        }
+        if (first == index) {
+            return release(customerId) == seat;
+        }
+        int previous = first;
+        while (nextSeatOfCustomer[previous] != index) {
+            previous = nextSeatOfCustomer[previous];
+        }
+        nextSeatOfCustomer[previous] = nextSeatOfCustomer[index];
+        occupied.clear(index);
+        occupants[index] = 0;
+        occupiedCount--;
+        version++;
+        return true;
+    }
+
+    // A copy without the seats whose occupant is negative, i.e. temporary holds
+    public SeatMap withoutHolds() {
+        SeatMap copy = new SeatMap(occupants.length);
+        for (int index = occupied.nextSetBit(0); index >= 0; index = occupied.nextSetBit(index + 1)) {
+            if (occupants[index] > 0) {
+                copy.assign(occupants[index], index + 1);
+            }
+        }
+        return copy;
+    }
+
+    // Customer ID in the seat, or 0 when it is free
+    public int occupantOf(int seat) {
+        int index = seat - 1;
+        return index >= 0 && index < occupants.length ? occupants[index] : 0;
+    }
+
+    // Next occupied seat after the given one (0 to start), or -1 when there are no more
+    public int nextOccupiedSeat(int afterSeat) {
+        int index = occupied.nextSetBit(afterSeat);
+        return index < 0 ? -1 : index + 1;
+    }
+
+    // Bumped by every assign and release
+    public int getVersion() {
+        return version;
+    }
+
+    // Customer ID per seat, indexed from seat 1 at position 0; 0 marks a free seat
+    public int[] occupantsBySeat() {
+        return Arrays.copyOf(occupants, occupied.length());
+    }
+
+    public int[] occupants() {
+        int[] customerIds = new int[occupiedCount];
+        int count = 0;
+        for (int index = occupied.nextSetBit(0); index >= 0; index = occupied.nextSetBit(index + 1)) {
+            customerIds[count++] = occupants[index];
+        }
+        return customerIds;
+    }
+
+    private void ensureCapacity(int seats) {
+        if (seats <= occupants.length) return;
+        int newLength = Math.max(seats, occupants.length * 2);
+        occupants = Arrays.copyOf(occupants, newLength);
+        nextSeatOfCustomer = Arrays.copyOf(nextSeatOfCustomer, newLength);
+    }
+}
+
+// WaitingList class
+// Customers waiting for a seat on one bus, indexed by customer ID so nobody queues twice. Higher tiers are
+// served first, first come first served within a tier. Each tier keeps its tickets in arrival order with a
+// Fenwick tree counting the ones still live, so a customer can leave from the middle and their position is
+// a prefix count rather than a walk down the queue. Customers booked together wait as one group: each member
+// keeps an ordinary ticket, but the group is only ever served whole.
+class WaitingList {
+    public static final int STANDARD_TIER = 0;
+
+    private final NavigableMap<Integer, Tier> tiers = new TreeMap<>(Comparator.reverseOrder());
+    // Customer ID to {tier, slot}
+    private final Map<Integer, int[]> entries = new HashMap<>();
+    // Member customer ID to their group
+    private final Map<Integer, Party> groups = new HashMap<>();
+    private int version;
+
+    // Customers served together: one waiting on their own, or a group
+    static final class Party {
+        final List<Integer> customerIds;
+        final boolean group;
+        // A group needs one run of consecutive seats
+        final boolean adjacent;
+        // Seats on the bus when the group joined; a group is only given seats up to this number
+        final int busSeats;
+
+        Party(List<Integer> customerIds, boolean group, boolean adjacent, int busSeats) {
+            this.customerIds = customerIds;
+            this.group = group;
+            this.adjacent = adjacent;
+            this.busSeats = busSeats;
+        }
+    }
+
+    private static class Tier {
+        // Customer ID per ticket slot; 0 once that customer has left
+        int[] customerIds = new int[8];
+        // Fenwick tree over the slots, 1-based
+        int[] liveCounts = new int[9];
+        int head;
+        int tail;
+        int live;
+
+        void add(int slot, int delta) {
+            for (int i = slot + 1; i < liveCounts.length; i += i & -i) {
+                liveCounts[i] += delta;
+            }
+        }
+
+        // Live tickets in slots [0, slot]
+        int countThrough(int slot) {
+            int count = 0;
+            for (int i = slot + 1; i > 0; i -= i & -i) {
+                count += liveCounts[i];
+            }
+            return count;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public boolean contains(int customerId) {
+        return entries.containsKey(customerId);
+    }
+
+    // Bumped by every successful offer and remove
+    public int getVersion() {
+        return version;
+    }
+
+    // Returns false when the customer is already waiting
+    public boolean offer(int customerId, int tier) {
+        if (entries.containsKey(customerId)) {
+            return false;
+        }
+        Tier queue = tiers.computeIfAbsent(tier, k -> new Tier());
+        if (queue.tail == queue.customerIds.length) {
+            compact(queue);
+        }
+        int slot = queue.tail++;
+        queue.customerIds[slot] = customerId;
+        queue.add(slot, 1);
+        queue.live++;
+        entries.put(customerId, new int[]{tier, slot});
+        version++;
+        return true;
+    }
+
+    // Queues the customers as one group; returns false, adding nobody, when any of them is already waiting
+    public boolean offerGroup(int[] customerIds, int tier, boolean adjacent, int busSeats) {
+        for (int customerId : customerIds) {
+            if (entries.containsKey(customerId)) {
+                return false;
+            }
+        }
+        for (int customerId : customerIds) {
+            offer(customerId, tier);
+        }
+        formGroup(customerIds, adjacent, busSeats);
+        return true;
+    }
+
+    // Binds customers who are already waiting into one group, as read back from a snapshot
+    public void formGroup(int[] customerIds, boolean adjacent, int busSeats) {
+        Party party = new Party(new ArrayList<>(customerIds.length), true, adjacent, busSeats);
+        for (int customerId : customerIds) {
+            if (!entries.containsKey(customerId) || groups.containsKey(customerId)) {
+                throw new IllegalArgumentException("Customer " + customerId + " cannot join a waiting group");
+            }
+            party.customerIds.add(customerId);
+            groups.put(customerId, party);
+        }
+    }
+
+    // Null for a customer waiting on their own
+    public Party groupOf(int customerId) {
+        return groups.get(customerId);
+    }
+
+    // Waiting groups in the order they will be served
+    public List<Party> groups() {
+        Set<Party> inOrder = new LinkedHashSet<>();
+        if (!groups.isEmpty()) {
+            for (int customerId : customerIds()) {
+                Party party = groups.get(customerId);
+                if (party != null) {
+                    inOrder.add(party);
+                }
+            }
+        }
+        return new ArrayList<>(inOrder);
+    }
+
+    // Customers waiting on their own rather than in a group
+    public int loneCount() {
+        return entries.size() - groups.size();
+    }
+
+    // A member who leaves a group leaves the rest of it waiting
+    public boolean remove(int customerId) {
+        int[] entry = entries.remove(customerId);
+        if (entry == null) {
+            return false;
+        }
+        Party party = groups.remove(customerId);
+        if (party != null) {
+            party.customerIds.remove(Integer.valueOf(customerId));
+        }
+        Tier queue = tiers.get(entry[0]);
+        queue.customerIds[entry[1]] = 0;
+        queue.add(entry[1], -1);
+        if (--queue.live == 0) {
+            tiers.remove(entry[0]);
+        }
+        version++;
+        return true;
+    }
+
+    // Removes and returns the first party in serving order that fits: a customer waiting on their own when
+    // loneFits is set, or a group groupFits accepts. Groups that do not fit keep their place in the queue.
+    // Returns null when nothing fits
+    public Party pollFirstFitting(boolean loneFits, Predicate<Party> groupFits) {
+        if (!loneFits && groups.isEmpty()) {
+            return null;
+        }
+        Set<Party> passedOver = new HashSet<>();
+        for (Tier queue : tiers.values()) {
+            while (queue.customerIds[queue.head] == 0) {
+                queue.head++;
+            }
+            for (int slot = queue.head; slot < queue.tail; slot++) {
+                int customerId = queue.customerIds[slot];
+                if (customerId == 0) continue;
+                Party party = groups.get(customerId);
+                if (party == null) {
+                    if (loneFits) {
+                        remove(customerId);
+                        return new Party(List.of(customerId), false, false, 0);
+                    }
+                } else if (!passedOver.contains(party)) {
+                    if (groupFits.test(party)) {
+                        List<Integer> members = new ArrayList<>(party.customerIds);
+                        for (int memberId : members) {
+                            remove(memberId);
+                        }
+                        return new Party(members, true, party.adjacent, party.busSeats);
+                    }
+                    passedOver.add(party);
+                }
+            }
+        }
+        return null;
+    }
+
+    // 1-based place in the overall queue, or 0 when the customer is not waiting
+    public int positionOf(int customerId) {
+        int[] entry = entries.get(customerId);
+        if (entry == null) {
+            return 0;
+        }
+        int ahead = 0;
+        for (Tier higher : tiers.headMap(entry[0], false).values()) {
+            ahead += higher.live;
+        }
+        return ahead + tiers.get(entry[0]).countThrough(entry[1]);
+    }
+
+    public int tierOf(int customerId) {
+        int[] entry = entries.get(customerId);
+        return entry == null ? STANDARD_TIER : entry[0];
+    }
+
+    // Customer IDs in the order they will be served
+    public int[] customerIds() {
+        int[] customerIds = new int[entries.size()];
+        int count = 0;
+        for (Tier queue : tiers.values()) {
+            for (int slot = queue.head; slot < queue.tail; slot++) {
+                if (queue.customerIds[slot] != 0) {
+                    customerIds[count++] = queue.customerIds[slot];
+                }
+            }
+        }
+        return customerIds;
+    }
+
+    // Moves the live tickets to the front, growing the arrays when more than half of them are live
+    private void compact(Tier queue) {
+        int length = Math.max(8, queue.live * 2);
+        int[] customerIds = new int[length];
+        int count = 0;
+        for (int slot = queue.head; slot < queue.tail; slot++) {
+            int customerId = queue.customerIds[slot];
+            if (customerId != 0) {
+                customerIds[count] = customerId;
+                entries.get(customerId)[1] = count;
+                count++;
+            }
+        }
+        int[] liveCounts = new int[length + 1];
+        for (int i = 1; i <= count; i++) {
+            liveCounts[i]++;
+            int parent = i + (i & -i);
+            if (parent <= length) {
+                liveCounts[parent] += liveCounts[i];
+            }
+        }
+        queue.customerIds = customerIds;
+        queue.liveCounts = liveCounts;
+        queue.head = 0;
+        queue.tail = count;
+    }
+}
+
+// TimerWheel class
+// A hashed timer wheel. One thread advances a ring of buckets a tick at a time, so pending timeouts cost a
+// small node each and no thread of their own. New timeouts are handed over through a queue and only the wheel
+// thread touches the buckets; a timeout sits in the bucket of its deadline tick with the number of laps it still
+// has to wait. Expiry is accurate to one tick.
+class TimerWheel {
+    abstract static class Timeout {
+        private long deadlineNanos;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        // Runs on the wheel thread, so it must not block
+        protected abstract void expire();
+
+        // A cancelled timeout is unlinked when the wheel next reaches its bucket
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long tick;
+
+    // The bucket count is rounded up to a power of two
+    TimerWheel(long tickMillis, int bucketCount, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[Integer.highestOneBit(Math.max(bucketCount, 2) - 1) << 1];
+        this.mask = buckets.length - 1;
+        Thread worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        timeout.deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+        incoming.add(timeout);
+    }
+
+    private void run() {
+        while (true) {
+            long wait = tickNanos * (tick + 1) - (System.nanoTime() - startNanos);
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            transferIncoming();
+            expireBucket((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) continue;
+            // Overdue timeouts go in the current bucket, which is expired straight after
+            long deadlineTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.rounds = (deadlineTick - tick) / buckets.length;
+            int bucket = (int) (deadlineTick & mask);
+            timeout.next = buckets[bucket];
+            buckets[bucket] = timeout;
+        }
+    }
+
+    private void expireBucket(int bucket) {
+        Timeout previous = null;
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds == 0) {
+                if (previous == null) {
+                    buckets[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.expire();
+                    } catch (RuntimeException e) {
+                        System.out.println("Error expiring timeout: " + e.getMessage());
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
+
+// Notification class
+class Notification {
+    enum Kind { CANCELLED, CO_PASSENGER_CANCELLED, PROMOTED }
+
+    private final Kind kind;
+    private final Collection<Customer> recipients;
+    private final String busNumber;
+    private final String subjectName;
+    private final int seat;
+
+    public Notification(Kind kind, Collection<Customer> recipients, String busNumber, String subjectName, int seat) {
+        this.kind = kind;
+        this.recipients = recipients;
+        this.busNumber = busNumber;
+        this.subjectName = subjectName;
+        this.seat = seat;
+    }
+
+    public Collection<Customer> getRecipients() {
+        return recipients;
+    }
+
+    public String messageFor(Customer recipient) {
+        switch (kind) {
+            case CANCELLED:
+                return "Your seat " + seat + " on bus " + busNumber + " has been canceled successfully.";
+            case CO_PASSENGER_CANCELLED:
+                return "Dear " + recipient.getName() + ", your co-passenger " + subjectName + " canceled their seat on bus " + busNumber + " just now.";
+            default:
+                return "Dear " + recipient.getName() + ", seat " + seat + " on bus " + busNumber + " is now booked for you from the waiting list!";
+        }
+    }
+}
+
+// NotificationSink interface
+interface NotificationSink {
+    // Several events for the same recipient within one batch arrive together
+    void deliver(Customer recipient, List<String> messages) throws IOException;
+
+    // Called once at the end of every batch
+    default void flush() throws IOException {
+    }
+}
+
+// ConsoleNotificationSink class
+class ConsoleNotificationSink implements NotificationSink {
+    @Override
+    public void deliver(Customer recipient, List<String> messages) {
+        System.out.println("Notification to " + recipient.getName() + ": " + String.join(" | ", messages));
+    }
+}
+
+// FileNotificationSink class
+class FileNotificationSink implements NotificationSink {
+    private final BufferedWriter writer;
+
+    public FileNotificationSink(String fileName) throws IOException {
+        this.writer = new BufferedWriter(new FileWriter(fileName, true));
+    }
+
+    @Override
+    public void deliver(Customer recipient, List<String> messages) throws IOException {
+        writer.write(recipient.getName() + "\t" + String.join(" | ", messages));
+        writer.newLine();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+}
+
+// StubNotificationSink class
+// Keeps the most recent deliveries in memory instead of sending them anywhere
+class StubNotificationSink implements NotificationSink {
+    private static final int RETAINED = 1000;
+
+    private final Deque<String> recent = new ArrayDeque<>();
+    private final AtomicLong deliveries = new AtomicLong();
+
+    @Override
+    public synchronized void deliver(Customer recipient, List<String> messages) {
+        deliveries.incrementAndGet();
+        recent.addLast(recipient.getName() + ": " + String.join(" | ", messages));
+        if (recent.size() > RETAINED) {
+            recent.removeFirst();
+        }
+    }
+
+    public synchronized List<String> getRecent() {
+        return new ArrayList<>(recent);
+    }
+
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+}
+
+// NotificationOutbox class
+// Bookings publish into a bounded queue and return; a single dispatcher thread drains it in batches,
+// merges everything one recipient is owed in that batch into a single delivery, and hands it to the sinks.
+class NotificationOutbox {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final BlockingQueue<Notification> queue;
+    private final List<NotificationSink> sinks;
+    private final int batchSize;
+    private final long publishTimeoutMillis;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // Guards starting and stopping the dispatcher; publishers only take it for the first start
+    private final Object lifecycleLock = new Object();
+    // Held while handing a batch to the sinks, so deliveries after shutdown never interleave with the dispatcher
+    private final Object sinkLock = new Object();
+    private volatile Thread dispatcher;
+    private volatile boolean running;
+    // Set by shutdown; from then on events are delivered on the publishing thread
+    private volatile boolean stopped;
+
+    public NotificationOutbox(List<NotificationSink> sinks) {
+        this(sinks, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, 50);
+    }
+
+    public NotificationOutbox(List<NotificationSink> sinks, int capacity, int batchSize, long publishTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sinks = new ArrayList<>(sinks);
+        this.batchSize = batchSize;
+        this.publishTimeoutMillis = publishTimeoutMillis;
+    }
+
+    // Sinks by name: console (default), stub, or file:<path>; comma-separated for several
+    public static NotificationOutbox fromSpec(String spec) throws IOException {
+        List<NotificationSink> sinks = new ArrayList<>();
+        for (String name : (spec == null || spec.isBlank() ? "console" : spec).split(",")) {
+            name = name.trim();
+            if (name.equals("console")) {
+                sinks.add(new ConsoleNotificationSink());
+            } else if (name.equals("stub")) {
+                sinks.add(new StubNotificationSink());
+            } else if (name.startsWith("file:")) {
+                sinks.add(new FileNotificationSink(name.substring(5)));
+            } else {
+                throw new IllegalArgumentException("Unknown notification sink: " + name);
+            }
+        }
+        return new NotificationOutbox(sinks);
+    }
+
+    // Waits up to the publish timeout when the outbox is full, then drops the event
+    public boolean publish(Notification notification) {
+        if (stopped) {
+            published.incrementAndGet();
+            dispatch(List.of(notification));
+            return true;
+        }
+        ensureStarted();
+        try {
+            if (queue.offer(notification, publishTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                published.incrementAndGet();
+                // A shutdown that raced the offer may already have drained the queue for the last time
+                if (stopped && queue.remove(notification)) {
+                    dispatch(List.of(notification));
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    // A publish that raced shutdown must not start a dispatcher nobody will stop; its event is delivered
+    // directly once publish sees the outbox stopped
+    private void ensureStarted() {
+        if (dispatcher != null || stopped) return;
+        synchronized (lifecycleLock) {
+            if (dispatcher != null || stopped) return;
+            running = true;
+            Thread thread = new Thread(this::dispatchLoop, "notification-dispatcher");
+            thread.setDaemon(true);
+            thread.start();
+            dispatcher = thread;
+        }
+    }
+
+    // Stops the dispatcher after everything already published has been delivered. Events published later,
+    // say by requests still in flight while a shutdown hook runs, are delivered before publish returns
+    public void shutdown() {
+        Thread thread;
+        synchronized (lifecycleLock) {
+            thread = dispatcher;
+            running = false;
+            stopped = true;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<Notification> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            dispatch(remaining);
+        }
+    }
+
+    private void dispatchLoop() {
+        List<Notification> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Notification first = running ? queue.take() : queue.poll();
+                if (first == null) break;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            dispatch(batch);
+            batch.clear();
+        }
+    }
+
+    // Publishers deliver directly once the outbox is shut down, so the sinks are handed one batch at a time
+    private void dispatch(List<Notification> batch) {
+        Map<Customer, List<String>> byRecipient = new LinkedHashMap<>();
+        int messages = 0;
+        for (Notification notification : batch) {
+            for (Customer recipient : notification.getRecipients()) {
+                byRecipient.computeIfAbsent(recipient, k -> new ArrayList<>()).add(notification.messageFor(recipient));
+                messages++;
+            }
+        }
+        synchronized (sinkLock) {
+            for (NotificationSink sink : sinks) {
+                try {
+                    for (Map.Entry<Customer, List<String>> entry : byRecipient.entrySet()) {
+                        sink.deliver(entry.getKey(), entry.getValue());
+                    }
+                    sink.flush();
+                } catch (IOException | RuntimeException e) {
+                    failures.incrementAndGet();
+                    System.out.println("Error delivering notifications: " + e.getMessage());
+                }
+            }
+        }
+        delivered.addAndGet(byRecipient.size());
+        coalesced.addAndGet(messages - byRecipient.size());
+        batches.incrementAndGet();
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("published", published.get());
+        counters.put("dropped", dropped.get());
+        counters.put("delivered", delivered.get());
+        counters.put("coalesced", coalesced.get());
+        counters.put("batches", batches.get());
+        counters.put("failures", failures.get());
+        counters.put("pending", (long) queue.size());
+        return counters;
+    }
+}
+
+// ReservationSnapshot class
+// Versioned binary snapshot of every bus's seats and waiting list. The file holds a fixed header, one
+// block per bus, and an index of (bus number, offset, length) at the end. Opening a snapshot maps and
+// reads only the index; a bus's block is read and decoded the first time that bus is used.
+class ReservationSnapshot implements Closeable {
+    static final int MAGIC = 0x42525356; // "BRSV"
+    // Version 1 stored whole customer records, version 2 customer IDs, version 3 adds waiting-list tiers,
+    // version 4 waiting groups
+    static final int VERSION = 4;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8;
+
+    private final FileChannel channel;
+    private final int version;
+    private final long journalSequence;
+    private final Map<String, long[]> index;
+
+    // Decoded contents of one bus block
+    static class BusBlock {
+        final SeatMap seats;
+        final WaitingList waitingList;
+
+        BusBlock(SeatMap seats, WaitingList waitingList) {
+            this.seats = seats;
+            this.waitingList = waitingList;
+        }
+    }
+
+    private ReservationSnapshot(FileChannel channel, int version, long journalSequence, Map<String, long[]> index) {
+        this.channel = channel;
+        this.version = version;
+        this.journalSequence = journalSequence;
+        this.index = index;
+    }
+
+    // Returns null when there is no snapshot yet. Older snapshots are rewritten in the current version,
+    // resolving their customer records through the registry.
+    public static ReservationSnapshot open(String fileName, CustomerRegistration customerReg) throws IOException {
+        ReservationSnapshot snapshot = openAnyVersion(fileName);
+        if (snapshot == null || snapshot.version == VERSION) {
+            return snapshot;
+        }
+        String temp = fileName + ".tmp";
+        try (ReservationSnapshot old = snapshot; Writer writer = new Writer(temp, old.journalSequence)) {
+            for (String busNumber : old.busNumbersInFileOrder()) {
+                BusBlock block = old.decode(old.rawBlock(busNumber), customerReg);
+                writer.writeBus(busNumber, block.seats, block.waitingList);
+            }
+        }
+        Files.move(Paths.get(temp), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return openAnyVersion(fileName);
+    }
+
+    private static ReservationSnapshot openAnyVersion(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a reservation snapshot: " + fileName);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported reservation snapshot version " + version + " in " + fileName);
+            }
+            long journalSequence = header.getLong();
+            int busCount = header.getInt();
+            long indexOffset = header.getLong();
+
+            ByteBuffer indexBuffer = read(channel, indexOffset, channel.size() - indexOffset);
+            Map<String, long[]> index = new HashMap<>(busCount * 2);
+            for (int i = 0; i < busCount; i++) {
+                String busNumber = readString(indexBuffer);
+                index.put(busNumber, new long[]{indexBuffer.getLong(), indexBuffer.getInt()});
+            }
+            return new ReservationSnapshot(channel, version, journalSequence, index);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt reservation snapshot " + fileName, e);
+        }
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public boolean contains(String busNumber) {
+        return index.containsKey(busNumber);
+    }
+
+    public Set<String> getBusNumbers() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public BusBlock read(String busNumber) throws IOException {
+        ByteBuffer block = rawBlock(busNumber);
+        ReservationSystem.PERSISTENCE.snapshotRead(block.remaining());
+        return decode(block, null);
+    }
+
+    // {seats taken, customers waiting} from the block's counts alone; open() only ever returns the current version
+    public int[] counts(String busNumber) throws IOException {
+        ByteBuffer block = rawBlock(busNumber);
+        int seated = block.getInt(4);
+        return new int[]{seated, block.getInt(8 + seated * 8)};
+    }
+
+    // The undecoded block, so a compaction can carry over buses that were never loaded
+    public ByteBuffer rawBlock(String busNumber) throws IOException {
+        long[] entry = index.get(busNumber);
+        return read(channel, entry[0], entry[1]);
+    }
+
+    // A positional read rather than a mapping: a mapping is only released once its buffer is collected, so
+    // compactions that copy every bus would pile them up until the process hits its mapping limit
+    private static ByteBuffer read(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Reservation snapshot ends before byte " + (position + length));
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private List<String> busNumbersInFileOrder() {
+        List<String> busNumbers = new ArrayList<>(index.keySet());
+        busNumbers.sort(Comparator.comparingLong(busNumber -> index.get(busNumber)[0]));
+        return busNumbers;
+    }
+
+    private BusBlock decode(ByteBuffer block, CustomerRegistration customerReg) {
+        SeatMap seats = new SeatMap(block.getInt());
+        int seated = block.getInt();
+        for (int i = 0; i < seated; i++) {
+            int seat = block.getInt();
+            seats.assign(readCustomerId(block, customerReg), seat);
+        }
+        WaitingList waitingList = new WaitingList();
+        int waiting = block.getInt();
+        for (int i = 0; i < waiting; i++) {
+            int customerId = readCustomerId(block, customerReg);
+            waitingList.offer(customerId, version >= 3 ? block.getInt() : WaitingList.STANDARD_TIER);
+        }
+        int groups = version >= 4 ? block.getInt() : 0;
+        for (int i = 0; i < groups; i++) {
+            boolean adjacent = block.getInt() != 0;
+            int busSeats = block.getInt();
+            int[] customerIds = new int[block.getInt()];
+            for (int j = 0; j < customerIds.length; j++) {
+                customerIds[j] = block.getInt();
+            }
+            waitingList.formGroup(customerIds, adjacent, busSeats);
+        }
+        return new BusBlock(seats, waitingList);
+    }
+
+    private int readCustomerId(ByteBuffer buffer, CustomerRegistration customerReg) {
+        if (version >= 2) {
+            return buffer.getInt();
+        }
+        Customer customer = new Customer(readString(buffer), readString(buffer), readString(buffer), readString(buffer), buffer.getInt());
+        return customerReg.resolve(customer).getId();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Streams bus blocks to disk and appends the index when closed
+    static class Writer implements Closeable {
+        private final String fileName;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        private final DataOutputStream block = new DataOutputStream(blockBytes);
+        private final Map<String, long[]> index = new LinkedHashMap<>();
+        private long position = HEADER_BYTES;
+
+        Writer(String fileName, long journalSequence) throws IOException {
+            this.fileName = fileName;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(journalSequence);
+            out.writeInt(0);
+            out.writeLong(0);
+        }
+
+        void writeBus(String busNumber, SeatMap seats, WaitingList waitingList) throws IOException {
+            blockBytes.reset();
+            int lastSeat = 0;
+            for (int seat = seats.nextOccupiedSeat(0); seat > 0; seat = seats.nextOccupiedSeat(seat)) {
+                lastSeat = seat;
+            }
+            block.writeInt(lastSeat);
+            block.writeInt(seats.size());
+            for (int seat = seats.nextOccupiedSeat(0); seat > 0; seat = seats.nextOccupiedSeat(seat)) {
+                block.writeInt(seat);
+                block.writeInt(seats.occupantOf(seat));
+            }
+            int[] waiting = waitingList.customerIds();
+            block.writeInt(waiting.length);
+            for (int customerId : waiting) {
+                block.writeInt(customerId);
+                block.writeInt(waitingList.tierOf(customerId));
+            }
+            List<WaitingList.Party> groups = waitingList.groups();
+            block.writeInt(groups.size());
+            for (WaitingList.Party group : groups) {
+                block.writeInt(group.adjacent ? 1 : 0);
+                block.writeInt(group.busSeats);
+                block.writeInt(group.customerIds.size());
+                for (int customerId : group.customerIds) {
+                    block.writeInt(customerId);
+                }
+            }
+            block.flush();
+            appendBlock(busNumber, blockBytes.toByteArray());
+        }
+
+        void copyBus(String busNumber, ByteBuffer rawBlock) throws IOException {
+            byte[] bytes = new byte[rawBlock.remaining()];
+            rawBlock.get(bytes);
+            appendBlock(busNumber, bytes);
+        }
+
+        private void appendBlock(String busNumber, byte[] bytes) throws IOException {
+            out.write(bytes);
+            index.put(busNumber, new long[]{position, bytes.length});
+            position += bytes.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long indexOffset = position;
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                byte[] busNumber = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(busNumber.length);
+                out.write(busNumber);
+                out.writeLong(entry.getValue()[0]);
+                out.writeInt((int) entry.getValue()[1]);
+            }
+            out.close();
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.seek(16);
+                file.writeInt(index.size());
+                file.writeLong(indexOffset);
+            }
+        }
+    }
+
+    // Converts the line-based reservations file. Lines written before customer IDs existed carry the whole
+    // customer record, which is resolved through the registry.
+    public static void textToBinary(String textFile, String binaryFile, CustomerRegistration customerReg) throws IOException {
+        Map<String, SeatMap> seatsByBus = new LinkedHashMap<>();
+        Map<String, WaitingList> waitingByBus = new LinkedHashMap<>();
+        long journalSequence = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(textFile))) {
+            String line;
+            String currentBus = null;
+            String section = null;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.startsWith(Journal.SNAPSHOT_HEADER)) {
+                    journalSequence = Journal.parseSnapshotHeader(line);
+                } else if (line.startsWith("Reservations:")) {
+                    currentBus = line.substring(13).trim();
+                    section = "Reservations";
+                    seatsByBus.computeIfAbsent(currentBus, k -> new SeatMap(0));
+                    waitingByBus.computeIfAbsent(currentBus, k -> new WaitingList());
+                } else if (line.startsWith("WaitingList:") || line.startsWith("WaitingGroups:")) {
+                    section = line.substring(0, line.indexOf(':'));
+                    currentBus = line.substring(section.length() + 1).trim();
+                    seatsByBus.computeIfAbsent(currentBus, k -> new SeatMap(0));
+                    waitingByBus.computeIfAbsent(currentBus, k -> new WaitingList());
+                } else {
+                    try {
+                        if ("WaitingGroups".equals(section)) {
+                            formGroup(waitingByBus.get(currentBus), line);
+                        } else if ("WaitingList".equals(section)) {
+                            offerWaiting(waitingByBus.get(currentBus), line, customerReg);
+                        } else {
+                            assignSeat(seatsByBus.get(currentBus), line, customerReg);
+                        }
+                    } catch (RuntimeException e) {
+                        System.out.println("Skipping invalid line in reservation file: " + line);
+                    }
+                }
+            }
+        }
+        try (Writer writer = new Writer(binaryFile, journalSequence)) {
+            for (Map.Entry<String, SeatMap> entry : seatsByBus.entrySet()) {
+                writer.writeBus(entry.getKey(), entry.getValue(), waitingByBus.get(entry.getKey()));
+            }
+        }
+    }
+
+    public static void binaryToText(String binaryFile, String textFile, CustomerRegistration customerReg) throws IOException {
+        try (ReservationSnapshot snapshot = open(binaryFile, customerReg);
+             BufferedWriter writer = new BufferedWriter(new FileWriter(textFile))) {
+            if (snapshot == null) {
+                throw new FileNotFoundException(binaryFile);
+            }
+            writer.write(Journal.SNAPSHOT_HEADER + snapshot.getJournalSequence());
+            writer.newLine();
+            for (String busNumber : snapshot.busNumbersInFileOrder()) {
+                BusBlock block = snapshot.read(busNumber);
+                writeText(writer, busNumber, block.seats, block.waitingList);
+            }
+        }
+    }
+
+    // One bus in the text layout: a Reservations: section of "seat,customerId" lines, then a WaitingList:
+    // section of "customerId[,tier]" lines, then for a bus with waiting groups a WaitingGroups: section of
+    // "adjacent,busSeats,customerId,..." lines
+    static void writeText(BufferedWriter writer, String busNumber, SeatMap seats, WaitingList waitingList) throws IOException {
+        writer.write("Reservations:" + busNumber);
+        writer.newLine();
+        for (int seat = seats.nextOccupiedSeat(0); seat > 0; seat = seats.nextOccupiedSeat(seat)) {
+            writer.write(seat + "," + seats.occupantOf(seat));
+            writer.newLine();
+        }
+        writer.write("WaitingList:" + busNumber);
+        writer.newLine();
+        for (int customerId : waitingList.customerIds()) {
+            int tier = waitingList.tierOf(customerId);
+            writer.write(tier == WaitingList.STANDARD_TIER ? String.valueOf(customerId) : customerId + "," + tier);
+            writer.newLine();
+        }
+        List<WaitingList.Party> groups = waitingList.groups();
+        if (!groups.isEmpty()) {
+            writer.write("WaitingGroups:" + busNumber);
+            writer.newLine();
+            for (WaitingList.Party group : groups) {
+                StringJoiner line = new StringJoiner(",");
+                line.add(group.adjacent ? "1" : "0").add(String.valueOf(group.busSeats));
+                group.customerIds.forEach(customerId -> line.add(String.valueOf(customerId)));
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    // Accepts "seat,customerId", "seat,<customer>" and a bare customer record
+    static void assignSeat(SeatMap seats, String seatedCustomer, CustomerRegistration customerReg) {
+        int comma = seatedCustomer.indexOf(',');
+        String customer = comma < 0 ? null : seatedCustomer.substring(comma + 1);
+        if (customer != null && (customer.indexOf(',') < 0 || DataFields.count(customer) == 5)) {
+            int customerId = customerId(customer, customerReg);
+            if (!seats.assign(customerId, Integer.parseInt(seatedCustomer, 0, comma, 10))) {
+                seats.assign(customerId);
+            }
+        } else {
+            seats.assign(customerId(seatedCustomer, customerReg));
+        }
+    }
+
+    // "adjacent,busSeats,customerId,..." for customers already on the waiting list
+    static void formGroup(WaitingList waitingList, String group) {
+        String[] fields = group.split(",");
+        int[] customerIds = new int[fields.length - 2];
+        for (int i = 0; i < customerIds.length; i++) {
+            customerIds[i] = Integer.parseInt(fields[i + 2]);
+        }
+        waitingList.formGroup(customerIds, fields[0].equals("1"), Integer.parseInt(fields[1]));
+    }
+
+    // Accepts "customerId", "customerId,tier" and a bare customer record
+    static void offerWaiting(WaitingList waitingList, String waitingCustomer, CustomerRegistration customerReg) {
+        String[] parts = waitingCustomer.split(",");
+        if (parts.length == 2) {
+            waitingList.offer(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        } else {
+            waitingList.offer(customerId(waitingCustomer, customerReg), WaitingList.STANDARD_TIER);
+        }
+    }
+
+    // A customer ID, or a whole customer record from before IDs were assigned
+    static int customerId(String field, CustomerRegistration customerReg) {
+        if (field.indexOf(',') < 0) {
+            return Integer.parseInt(field);
+        }
+        return customerReg.resolve(Customer.fromDataString(field)).getId();
+    }
+}
+
+// ReservationSystem class
+// Each bus is guarded by its own inventory lock, so bookings on different buses never wait for each other.
+// The snapshot lock is only taken exclusively while saveToFile writes a consistent snapshot.
+class ReservationSystem {
+    private static final Metrics.Operation RESERVE = Metrics.operation("reserveSeat");
+    private static final Metrics.Operation RESERVE_GROUP = Metrics.operation("reserveGroup");
+    private static final Metrics.Operation WAITLIST = Metrics.operation("addCustomerToWaitingList");
+    private static final Metrics.Operation WITHDRAW = Metrics.operation("withdrawFromWaitingList");
+    private static final Metrics.Operation CANCEL = Metrics.operation("cancelReservation");
+    private static final Metrics.Operation HOLD = Metrics.operation("holdSeat");
+    private static final Metrics.Operation CONFIRM_HOLD = Metrics.operation("confirmHold");
+    private static final Metrics.Operation RELEASE_HOLD = Metrics.operation("releaseHold");
+    private static final Metrics.Operation SAVE = Metrics.operation("reservations.saveToFile");
+    private static final Metrics.Operation LOAD = Metrics.operation("reservations.loadFromFile");
+    static final Metrics.Persistence PERSISTENCE = Metrics.persistence("reservations");
+    public static final char TRIP_SEPARATOR = '@';
+    public static final int BOOKING_HORIZON_DAYS = 365;
+    // -Dbus.hold.ttl=<seconds>
+    public static final long DEFAULT_HOLD_TTL_SECONDS = Long.getLong("bus.hold.ttl", 300);
+
+    private final Map<String, BusInventory> inventories = new ConcurrentHashMap<>();
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final String fileName;
+    private final String snapshotFileName;
+    private final Journal journal;
+    private final CustomerRegistration customerReg;
+    private final NotificationOutbox outbox;
+    // One gzip file per service date, so reading back a past trip only touches that day's archive
+    private final Path archiveDirectory;
+    private volatile ReservationSnapshot snapshot;
+    // Trips dated before this have been archived and are left out of new snapshots
+    private volatile LocalDate archivedBefore = LocalDate.MIN;
+    private final Map<Long, Hold> holds = new ConcurrentHashMap<>();
+    private final AtomicLong nextHoldId = new AtomicLong();
+    // Null until enableAnalytics; replaced whenever the inventories are rebuilt wholesale
+    private volatile OccupancyAnalytics analytics;
+    private volatile BusRegistration analyticsBusReg;
+
+    // One wheel, started on the first hold, serves every reservation system in the process
+    private static class HoldTimer {
+        static final TimerWheel WHEEL = new TimerWheel(100, 1024, "hold-expiry");
+    }
+
+    // A seat taken out of sale for a checkout. It sits in the seat map under the negated customer ID, so it
+    // counts against capacity but is never journalled, saved or listed as a reservation. Whichever of confirm,
+    // release and expiry removes it from the holds map first decides its fate
+    private final class Hold extends TimerWheel.Timeout {
+        final long id;
+        final String busNumber;
+        final int seat;
+        final int customerId;
+
+        Hold(long id, String busNumber, int seat, int customerId) {
+            this.id = id;
+            this.busNumber = busNumber;
+            this.seat = seat;
+            this.customerId = customerId;
+        }
+
+        @Override
+        protected void expire() {
+            if (holds.remove(id, this)) {
+                dropHold(this);
+            }
+        }
+    }
+
+    // Seats and waiting lists hold customer IDs, resolved through the registry when read. Writers change
+    // them under the inventory's lock and then publish a fresh view; readers only ever look at the view
+    private class BusInventory {
+        final String tripKey;
+        final SeatMap seats;
+        final WaitingList waitingList;
+        volatile BusView view = BusView.EMPTY;
+        int heldSeats;
+        // The counts the analytics last saw for this trip
+        int reportedSold;
+        int reportedWaiting;
+
+        BusInventory(String tripKey, int capacity) {
+            this.tripKey = tripKey;
+            seats = new SeatMap(capacity);
+            waitingList = new WaitingList();
+        }
+
+        // The analytics counted the block from the snapshot while it was still unloaded
+        BusInventory(String tripKey, ReservationSnapshot.BusBlock block) {
+            this.tripKey = tripKey;
+            seats = block.seats;
+            waitingList = block.waitingList;
+            markReported();
+            publish();
+        }
+
+        // {seats sold, customers waiting}; held seats are not sold yet
+        int[] counts() {
+            return new int[]{seats.size() - heldSeats, waitingList.size()};
+        }
+
+        void markReported() {
+            reportedSold = seats.size() - heldSeats;
+            reportedWaiting = waitingList.size();
+        }
+
+        // Caller holds the inventory's lock or the exclusive snapshot lock. The seats as they are persisted, without any holds
+        SeatMap confirmedSeats() {
+            return heldSeats == 0 ? seats : seats.withoutHolds();
+        }
+
+        // Caller holds the inventory's lock. Only the half that changed is copied, and nothing when neither did
+        void publish() {
+            BusView current = view;
+            boolean seatsChanged = seats.getVersion() != current.seatsVersion;
+            boolean waitingChanged = waitingList.getVersion() != current.waitingVersion;
+            if (seatsChanged || waitingChanged) {
+                int[] occupantsBySeat = seatsChanged ? seats.occupantsBySeat() : current.occupantsBySeat;
+                view = new BusView(seats.getVersion(), seats.size(), occupantsBySeat,
+                        seatsChanged ? BusView.seatHolders(occupantsBySeat) : current.seatHolders,
+                        waitingList.getVersion(), waitingChanged ? waitingList.customerIds() : current.waiting);
+            }
+            OccupancyAnalytics reportTo = analytics;
+            int sold = seats.size() - heldSeats;
+            if (reportTo != null && (sold != reportedSold || waitingList.size() != reportedWaiting)) {
+                reportTo.tripChanged(tripKey, reportedSold, reportedWaiting, sold, waitingList.size());
+                markReported();
+            }
+        }
+    }
+
+    // Immutable picture of one bus; the arrays are never written after construction
+    private static final class BusView {
+        static final BusView EMPTY = new BusView(0, 0, new int[0], new int[1], 0, new int[0]);
+
+        final int seatsVersion;
+        final int occupied;
+        // Customer ID per seat, seat 1 first; 0 marks a free seat
+        final int[] occupantsBySeat;
+        // Open-addressed set of the customers holding a confirmed seat, at most half full; 0 marks an empty slot
+        final int[] seatHolders;
+        final int waitingVersion;
+        // Customer IDs in the order they will be served
+        final int[] waiting;
+
+        BusView(int seatsVersion, int occupied, int[] occupantsBySeat, int[] seatHolders, int waitingVersion, int[] waiting) {
+            this.seatsVersion = seatsVersion;
+            this.occupied = occupied;
+            this.occupantsBySeat = occupantsBySeat;
+            this.seatHolders = seatHolders;
+            this.waitingVersion = waitingVersion;
+            this.waiting = waiting;
+        }
+
+        // Held seats carry the negated customer ID, so they never count as reserved
+        static int[] seatHolders(int[] occupantsBySeat) {
+            int holders = 0;
+            for (int occupant : occupantsBySeat) {
+                if (occupant > 0) {
+                    holders++;
+                }
+            }
+            int[] table = new int[Integer.highestOneBit(Math.max(holders, 1) * 2 - 1) << 1];
+            for (int occupant : occupantsBySeat) {
+                if (occupant > 0) {
+                    int slot = slot(occupant, table.length);
+                    while (table[slot] != 0 && table[slot] != occupant) {
+                        slot = (slot + 1) & (table.length - 1);
+                    }
+                    table[slot] = occupant;
+                }
+            }
+            return table;
+        }
+
+        private static int slot(int customerId, int tableLength) {
+            int hash = customerId * 0x9E3779B9;
+            return (hash ^ hash >>> 16) & (tableLength - 1);
+        }
+
+        boolean holdsSeat(int customerId) {
+            int slot = slot(customerId, seatHolders.length);
+            while (seatHolders[slot] != 0) {
+                if (seatHolders[slot] == customerId) {
+                    return true;
+                }
+                slot = (slot + 1) & (seatHolders.length - 1);
+            }
+            return false;
+        }
+    }
+
+    public static class BookingRequest {
+        final Customer customer;
+        final Bus bus;
+        final int tier;
+
+        public BookingRequest(Customer customer, Bus bus, int tier) {
+            this.customer = customer;
+            this.bus = bus;
+            this.tier = tier;
+        }
+    }
+
+    public ReservationSystem(String fileName, CustomerRegistration customerReg) {
+        this(fileName, customerReg, new NotificationOutbox(List.of(new ConsoleNotificationSink())));
+    }
+
+    public ReservationSystem(String fileName, CustomerRegistration customerReg, NotificationOutbox outbox) {
+        this.fileName = fileName;
+        this.customerReg = customerReg;
+        String baseName = fileName.endsWith(".txt") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        this.snapshotFileName = baseName + ".dat";
+        this.archiveDirectory = Paths.get(baseName + "-archive");
+        this.journal = new Journal(fileName + ".journal", PERSISTENCE);
+        this.outbox = outbox;
+    }
+
+    public NotificationOutbox getOutbox() {
+        return outbox;
+    }
+
+    // Inventory is kept per trip, one bus on one service date, under the key "busNumber@yyyy-MM-dd". Every
+    // method that takes a bus number also accepts a trip key; a bare bus number is an open, undated ticket
+    // as booked before trips had dates
+    public static String tripKey(String busNumber, LocalDate date) {
+        return busNumber + TRIP_SEPARATOR + date;
+    }
+
+    public static String busNumberOf(String tripKey) {
+        int separator = tripKey.indexOf(TRIP_SEPARATOR);
+        return separator < 0 ? tripKey : tripKey.substring(0, separator);
+    }
+
+    // Null for an undated key
+    public static LocalDate dateOf(String tripKey) {
+        int separator = tripKey.indexOf(TRIP_SEPARATOR);
+        return separator < 0 ? null : LocalDate.parse(tripKey.substring(separator + 1));
+    }
+
+    // Bookings are taken from today up to the booking horizon
+    private static void checkBookable(String tripKey) {
+        LocalDate date = dateOf(tripKey);
+        LocalDate today = LocalDate.now();
+        if (date != null && (date.isBefore(today) || date.isAfter(today.plusDays(BOOKING_HORIZON_DAYS)))) {
+            throw new IllegalArgumentException("Travel date must be between " + today + " and " + today.plusDays(BOOKING_HORIZON_DAYS));
+        }
+    }
+
+    private static boolean isBefore(String tripKey, LocalDate date) {
+        LocalDate tripDate = dateOf(tripKey);
+        return tripDate != null && tripDate.isBefore(date);
+    }
+
+    public BookingResult reserveSeat(Customer customer, String busNumber, BusRegistration busReg) {
+        return reserveSeat(customer, busNumber, busReg, WaitingList.STANDARD_TIER);
+    }
+
+    // A full bus puts the customer on the waiting list in the given tier; higher tiers are promoted first
+    public BookingResult reserveSeat(Customer customer, String busNumber, BusRegistration busReg, int tier) {
+        long started = Metrics.start();
+        BookingResult result = reserve(customer, busNumber, busReg, tier);
+        RESERVE.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult reserve(Customer customer, String busNumber, BusRegistration busReg, int tier) {
+        Bus bus = busReg.getBusByNumber(busNumberOf(busNumber));
+        if (bus == null) {
+            return BookingResult.of(BookingResult.Status.NO_SUCH_BUS);
+        }
+        checkBookable(busNumber);
+
+        int customerId = registeredId(customer);
+        int capacity = bus.getTotalSeats();
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventoryFor(busNumber, capacity);
+            synchronized (inventory) {
+                try {
+                    if (inventory.seats.size() < capacity) {
+                        int seat = inventory.seats.assign(customerId);
+                        journal.append("RESERVE " + busNumber + "," + seat + "," + customerId);
+                        return BookingResult.reserved(seat);
+                    }
+                    return enqueue(inventory, busNumber, customerId, tier);
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // Bulk path: bookings are applied under the exclusive snapshot lock without journalling or notifications,
+    // so the caller saves once the batch is in
+    public List<BookingResult> importReservations(List<BookingRequest> requests) {
+        List<BookingResult> results = new ArrayList<>(requests.size());
+        snapshotLock.writeLock().lock();
+        try {
+            for (BookingRequest request : requests) {
+                int customerId = registeredId(request.customer);
+                int capacity = request.bus.getTotalSeats();
+                BusInventory inventory = inventoryFor(request.bus.getBusNumber(), capacity);
+                synchronized (inventory) {
+                    try {
+                        if (inventory.seats.size() < capacity) {
+                            results.add(BookingResult.reserved(inventory.seats.assign(customerId)));
+                        } else {
+                            BookingResult.Status status = inventory.waitingList.offer(customerId, request.tier)
+                                    ? BookingResult.Status.WAITLISTED : BookingResult.Status.ALREADY_WAITLISTED;
+                            results.add(BookingResult.waitlisted(status, inventory.waitingList.positionOf(customerId)));
+                        }
+                    } finally {
+                        inventory.publish();
+                    }
+                }
+            }
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        return results;
+    }
+
+    public BookingResult reserveGroup(List<Customer> customers, String busNumber, BusRegistration busReg,
+                                      boolean adjacent, boolean waitlist) {
+        return reserveGroup(customers, busNumber, busReg, adjacent, waitlist, WaitingList.STANDARD_TIER);
+    }
+
+    // Seats every customer or none of them, as one journal record. With adjacent set the seats form one
+    // consecutive run. A group that cannot be seated joins the waiting list as one group when waitlist is set,
+    // and is seated whole once enough seats, or a long enough run of them, are free
+    public BookingResult reserveGroup(List<Customer> customers, String busNumber, BusRegistration busReg,
+                                      boolean adjacent, boolean waitlist, int tier) {
+        long started = Metrics.start();
+        BookingResult result = bookGroup(customers, busNumber, busReg, adjacent, waitlist, tier);
+        RESERVE_GROUP.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult bookGroup(List<Customer> customers, String busNumber, BusRegistration busReg,
+                                    boolean adjacent, boolean waitlist, int tier) {
+        Bus bus = busReg.getBusByNumber(busNumberOf(busNumber));
+        if (bus == null) {
+            return BookingResult.of(BookingResult.Status.NO_SUCH_BUS);
+        }
+        checkBookable(busNumber);
+        if (customers.isEmpty()) {
+            throw new IllegalArgumentException("A group booking needs at least one customer");
+        }
+
+        int[] customerIds = new int[customers.size()];
+        Set<Integer> distinct = new HashSet<>();
+        for (int i = 0; i < customerIds.length; i++) {
+            customerIds[i] = registeredId(customers.get(i));
+            if (!distinct.add(customerIds[i])) {
+                throw new IllegalArgumentException("Customer " + customerIds[i] + " appears more than once in the group");
+            }
+        }
+        int capacity = bus.getTotalSeats();
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventoryFor(busNumber, capacity);
+            synchronized (inventory) {
+                try {
+                    WaitingList.Party party = new WaitingList.Party(List.of(), true, adjacent, capacity);
+                    if (fits(inventory, party, customerIds.length)) {
+                        List<Integer> seats = seatGroup(inventory, party, customerIds);
+                        StringBuilder record = new StringBuilder("GROUP_RESERVE ").append(busNumber);
+                        for (int i = 0; i < customerIds.length; i++) {
+                            record.append(',').append(seats.get(i)).append(',').append(customerIds[i]);
+                        }
+                        journal.append(record.toString());
+                        return BookingResult.reserved(seats);
+                    }
+                    if (!waitlist) {
+                        return BookingResult.of(BookingResult.Status.NOT_ENOUGH_SEATS);
+                    }
+                    for (int customerId : customerIds) {
+                        if (inventory.waitingList.contains(customerId)) {
+                            return BookingResult.waitlisted(BookingResult.Status.ALREADY_WAITLISTED, inventory.waitingList.positionOf(customerId));
+                        }
+                    }
+                    inventory.waitingList.offerGroup(customerIds, tier, adjacent, capacity);
+                    StringBuilder record = new StringBuilder("GROUP_WAIT ").append(busNumber).append(',').append(tier)
+                            .append(',').append(adjacent ? 1 : 0).append(',').append(capacity);
+                    for (int customerId : customerIds) {
+                        record.append(',').append(customerId);
+                    }
+                    journal.append(record.toString());
+                    return BookingResult.waitlisted(BookingResult.Status.WAITLISTED, inventory.waitingList.positionOf(customerIds[0]));
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    public boolean hasFreeSeat(Bus bus) {
+        return getAvailableSeats(bus) > 0;
+    }
+
+    public boolean hasFreeSeat(Bus bus, LocalDate date) {
+        return getAvailableSeats(bus, date) > 0;
+    }
+
+    public int getAvailableSeats(Bus bus) {
+        return availableSeats(bus, bus.getBusNumber());
+    }
+
+    // A trip nobody has booked yet has no inventory, so every seat is free
+    public int getAvailableSeats(Bus bus, LocalDate date) {
+        return availableSeats(bus, tripKey(bus.getBusNumber(), date));
+    }
+
+    // Reads never lock: once a bus is loaded this is a single volatile read of its view
+    private int availableSeats(Bus bus, String tripKey) {
+        BusInventory inventory = existingInventory(tripKey);
+        return inventory == null ? bus.getTotalSeats() : Math.max(0, bus.getTotalSeats() - inventory.view.occupied);
+    }
+
+    public boolean isCustomerReserved(Customer customer, String busNumber) {
+        BusInventory inventory = existingInventory(busNumber);
+        return inventory != null && customer.getId() != 0 && inventory.view.holdsSeat(customer.getId());
+    }
+
+    public boolean isCustomerReserved(Customer customer, String busNumber, LocalDate date) {
+        return isCustomerReserved(customer, tripKey(busNumber, date));
+    }
+
+    public int getWaitingListSize(String busNumber) {
+        BusInventory inventory = existingInventory(busNumber);
+        return inventory == null ? 0 : inventory.view.waiting.length;
+    }
+
+    public BookingResult addCustomerToWaitingList(Customer customer, String busNumber, BusRegistration busReg) {
+        return addCustomerToWaitingList(customer, busNumber, busReg, WaitingList.STANDARD_TIER);
+    }
+
+    public BookingResult addCustomerToWaitingList(Customer customer, String busNumber, BusRegistration busReg, int tier) {
+        long started = Metrics.start();
+        BookingResult result = waitlist(customer, busNumber, busReg, tier);
+        WAITLIST.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult waitlist(Customer customer, String busNumber, BusRegistration busReg, int tier) {
+        Bus bus = busReg.getBusByNumber(busNumberOf(busNumber));
+        if (bus == null) {
+            return BookingResult.of(BookingResult.Status.NO_SUCH_BUS);
+        }
+        checkBookable(busNumber);
+
+        int customerId = registeredId(customer);
+        int capacity = bus.getTotalSeats();
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventoryFor(busNumber, capacity);
+            synchronized (inventory) {
+                try {
+                    if (inventory.seats.size() < capacity) {
+                        return BookingResult.of(BookingResult.Status.SEATS_AVAILABLE);
+                    }
+                    return enqueue(inventory, busNumber, customerId, tier);
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    public BookingResult withdrawFromWaitingList(Customer customer, String busNumber) {
+        long started = Metrics.start();
+        BookingResult result = withdraw(customer, busNumber);
+        WITHDRAW.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult withdraw(Customer customer, String busNumber) {
+        int[][] promotions;
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = existingInventory(busNumber);
+            if (inventory == null) {
+                return BookingResult.of(BookingResult.Status.NOT_WAITLISTED);
+            }
+            synchronized (inventory) {
+                try {
+                    boolean grouped = inventory.waitingList.groupOf(customer.getId()) != null;
+                    if (!inventory.waitingList.remove(customer.getId())) {
+                        return BookingResult.of(BookingResult.Status.NOT_WAITLISTED);
+                    }
+                    journal.append("WITHDRAW " + busNumber + "," + customer.getId());
+                    // The rest of a smaller group may now fit the seats that were already free
+                    promotions = grouped ? promoteFromWaitingList(inventory, busNumber, List.of()) : new int[0][];
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        return BookingResult.withdrawn(publishPromotions(busNumber, promotions));
+    }
+
+    // 1-based place on the bus's waiting list, or 0 when the customer is not waiting
+    public int getWaitingPosition(Customer customer, String busNumber) {
+        BusInventory inventory = existingInventory(busNumber);
+        if (inventory == null) {
+            return 0;
+        }
+        synchronized (inventory) {
+            return inventory.waitingList.positionOf(customer.getId());
+        }
+    }
+
+    public BookingResult holdSeat(Customer customer, String busNumber, BusRegistration busReg) {
+        return holdSeat(customer, busNumber, busReg, DEFAULT_HOLD_TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Takes a free seat out of sale until confirmHold books it or the hold is released or expires. A full bus
+    // gives NOT_ENOUGH_SEATS; holds never join the waiting list
+    public BookingResult holdSeat(Customer customer, String busNumber, BusRegistration busReg, long ttl, TimeUnit unit) {
+        long started = Metrics.start();
+        BookingResult result = hold(customer, busNumber, busReg, ttl, unit);
+        HOLD.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult hold(Customer customer, String busNumber, BusRegistration busReg, long ttl, TimeUnit unit) {
+        Bus bus = busReg.getBusByNumber(busNumberOf(busNumber));
+        if (bus == null) {
+            return BookingResult.of(BookingResult.Status.NO_SUCH_BUS);
+        }
+        checkBookable(busNumber);
+
+        int customerId = registeredId(customer);
+        int capacity = bus.getTotalSeats();
+        int seat;
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventoryFor(busNumber, capacity);
+            synchronized (inventory) {
+                try {
+                    if (inventory.seats.size() >= capacity) {
+                        return BookingResult.of(BookingResult.Status.NOT_ENOUGH_SEATS);
+                    }
+                    seat = inventory.seats.assign(-customerId);
+                    inventory.heldSeats++;
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        Hold hold = new Hold(nextHoldId.incrementAndGet(), busNumber, seat, customerId);
+        holds.put(hold.id, hold);
+        HoldTimer.WHEEL.schedule(hold, ttl, unit);
+        return BookingResult.held(hold.id, seat);
+    }
+
+    // Books the held seat for good; NO_SUCH_HOLD once the hold has expired or been released
+    public BookingResult confirmHold(long holdId) {
+        long started = Metrics.start();
+        BookingResult result = confirm(holdId);
+        CONFIRM_HOLD.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult confirm(long holdId) {
+        Hold hold = holds.remove(holdId);
+        if (hold == null) {
+            return BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+        }
+        hold.cancel();
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventories.get(hold.busNumber);
+            if (inventory == null) {
+                return BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+            }
+            synchronized (inventory) {
+                try {
+                    // The seat is gone if the inventory was reloaded since the hold was taken
+                    if (!inventory.seats.releaseSeat(-hold.customerId, hold.seat)) {
+                        return BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+                    }
+                    inventory.heldSeats--;
+                    inventory.seats.assign(hold.customerId, hold.seat);
+                    journal.append("RESERVE " + hold.busNumber + "," + hold.seat + "," + hold.customerId);
+                    return BookingResult.reserved(hold.seat);
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // Gives the seat back early, to the head of the waiting list if anyone is waiting
+    public BookingResult releaseHold(long holdId) {
+        long started = Metrics.start();
+        Hold hold = holds.remove(holdId);
+        BookingResult result;
+        if (hold == null) {
+            result = BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+        } else {
+            hold.cancel();
+            result = dropHold(hold);
+        }
+        RELEASE_HOLD.record(started, result.getStatus());
+        return result;
+    }
+
+    public int getHoldCount() {
+        return holds.size();
+    }
+
+    private BookingResult dropHold(Hold hold) {
+        int[][] promotions;
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = inventories.get(hold.busNumber);
+            if (inventory == null) {
+                return BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+            }
+            synchronized (inventory) {
+                try {
+                    if (!inventory.seats.releaseSeat(-hold.customerId, hold.seat)) {
+                        return BookingResult.of(BookingResult.Status.NO_SUCH_HOLD);
+                    }
+                    inventory.heldSeats--;
+                    promotions = promoteFromWaitingList(inventory, hold.busNumber, List.of(hold.seat));
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        return BookingResult.cancelled(List.of(hold.seat), publishPromotions(hold.busNumber, promotions));
+    }
+
+    public BookingResult cancelReservation(Customer customer, String busNumber) {
+        return cancel(customer, busNumber, 1);
+    }
+
+    // Releases every seat the customer holds on the bus and promotes waiting customers into all of them
+    public BookingResult cancelAllReservations(Customer customer, String busNumber) {
+        return cancel(customer, busNumber, Integer.MAX_VALUE);
+    }
+
+    private BookingResult cancel(Customer customer, String busNumber, int maxSeats) {
+        long started = Metrics.start();
+        BookingResult result = release(customer, busNumber, maxSeats);
+        CANCEL.record(started, result.getStatus());
+        return result;
+    }
+
+    private BookingResult release(Customer customer, String busNumber, int maxSeats) {
+        List<Integer> freedSeats = new ArrayList<>();
+        int[][] promotions;
+        int[] coPassengerIds;
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = existingInventory(busNumber);
+            if (inventory == null) {
+                return BookingResult.of(BookingResult.Status.NOT_RESERVED);
+            }
+            synchronized (inventory) {
+                try {
+                    int freedSeat;
+                    while (freedSeats.size() < maxSeats && (freedSeat = inventory.seats.release(customer.getId())) > 0) {
+                        journal.append("CANCEL " + busNumber + "," + freedSeat + "," + customer.getId());
+                        freedSeats.add(freedSeat);
+                    }
+                    if (freedSeats.isEmpty()) {
+                        return BookingResult.of(BookingResult.Status.NOT_RESERVED);
+                    }
+                    coPassengerIds = inventory.seats.occupants();
+
+                    // Promote customers from the waiting list into the freed seats, if available
+                    promotions = promoteFromWaitingList(inventory, busNumber, freedSeats);
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        List<Customer> coPassengers = resolve(coPassengerIds);
+
+        // Notifications are delivered by the outbox dispatcher, after the bus lock is released
+        for (int freedSeat : freedSeats) {
+            outbox.publish(new Notification(Notification.Kind.CANCELLED, List.of(customer), busNumber, customer.getName(), freedSeat));
+            if (!coPassengers.isEmpty()) {
+                outbox.publish(new Notification(Notification.Kind.CO_PASSENGER_CANCELLED, coPassengers, busNumber, customer.getName(), freedSeat));
+            }
+        }
+        return BookingResult.cancelled(freedSeats, publishPromotions(busNumber, promotions));
+    }
+
+    // Moves waiting customers into every free seat, e.g. after a bus's capacity was raised
+    public List<Customer> promoteWaiting(String busNumber, BusRegistration busReg) {
+        Bus bus = busReg.getBusByNumber(busNumberOf(busNumber));
+        if (bus == null) {
+            return List.of();
+        }
+        int[][] promotions;
+        snapshotLock.readLock().lock();
+        try {
+            BusInventory inventory = existingInventory(busNumber);
+            if (inventory == null) {
+                return List.of();
+            }
+            synchronized (inventory) {
+                try {
+                    List<Integer> freeSeats = new ArrayList<>();
+                    for (int seat = 1; seat <= bus.getTotalSeats() && freeSeats.size() < inventory.waitingList.size(); seat++) {
+                        if (inventory.seats.occupantOf(seat) == 0) {
+                            freeSeats.add(seat);
+                        }
+                    }
+                    promotions = promoteFromWaitingList(inventory, busNumber, freeSeats);
+                } finally {
+                    inventory.publish();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        return publishPromotions(busNumber, promotions);
+    }
+
+    // Seat number to passenger, in seat order. A past trip that is no longer live is read back from the archive
+    public SortedMap<Integer, Customer> getReservations(String busNumber) {
+        SortedMap<Integer, Customer> bySeat = new TreeMap<>();
+        BusInventory inventory = existingInventory(busNumber);
+        if (inventory == null) {
+            LocalDate date = dateOf(busNumber);
+            return date != null && Files.exists(archiveFile(date)) ? readArchivedReservations(busNumber) : bySeat;
+        }
+        int[] occupantsBySeat = inventory.view.occupantsBySeat;
+        for (int index = 0; index < occupantsBySeat.length; index++) {
+            Customer customer = occupantsBySeat[index] == 0 ? null : customerReg.getCustomerById(occupantsBySeat[index]);
+            if (customer != null) {
+                bySeat.put(index + 1, customer);
+            }
+        }
+        return bySeat;
+    }
+
+    public SortedMap<Integer, Customer> getReservations(String busNumber, LocalDate date) {
+        return getReservations(tripKey(busNumber, date));
+    }
+
+    public List<Customer> getWaitingList(String busNumber) {
+        BusInventory inventory = existingInventory(busNumber);
+        if (inventory == null) {
+            return new ArrayList<>();
+        }
+        return resolve(inventory.view.waiting);
+    }
+
+    public List<Customer> getWaitingList(String busNumber, LocalDate date) {
+        return getWaitingList(tripKey(busNumber, date));
+    }
+
+    // Moves every trip dated before today out of the live inventory and the snapshot into the archive file of
+    // its date, then compacts. The archives are appended and synced before the snapshot drops the trips, so a
+    // crash in between archives them again next time; reads take the last copy. Returns the number of trips archived
+    public int archivePastTrips(LocalDate today) {
+        snapshotLock.writeLock().lock();
+        try {
+            ReservationSnapshot current = snapshot;
+            SortedSet<String> pastTrips = new TreeSet<>();
+            for (String tripKey : inventories.keySet()) {
+                if (isBefore(tripKey, today)) {
+                    pastTrips.add(tripKey);
+                }
+            }
+            if (current != null) {
+                for (String tripKey : current.getBusNumbers()) {
+                    if (isBefore(tripKey, today)) {
+                        pastTrips.add(tripKey);
+                    }
+                }
+            }
+            if (pastTrips.isEmpty()) {
+                return 0;
+            }
+            Map<LocalDate, List<String>> tripsByDate = new TreeMap<>();
+            for (String tripKey : pastTrips) {
+                tripsByDate.computeIfAbsent(dateOf(tripKey), k -> new ArrayList<>()).add(tripKey);
+            }
+            try {
+                Files.createDirectories(archiveDirectory);
+                for (Map.Entry<LocalDate, List<String>> entry : tripsByDate.entrySet()) {
+                    archive(archiveFile(entry.getKey()), entry.getValue(), current);
+                }
+            } catch (IOException e) {
+                System.out.println("Error archiving past trips: " + e.getMessage());
+                return 0;
+            }
+            archivedBefore = today;
+            inventories.keySet().removeAll(pastTrips);
+            saveToFile();
+            rebuildAnalytics();
+            return pastTrips.size();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    // Appends one gzip member holding the trips' text blocks; caller holds the exclusive snapshot lock
+    private void archive(Path file, List<String> tripKeys, ReservationSnapshot current) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file.toFile(), true);
+             GZIPOutputStream gzip = new GZIPOutputStream(out);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8))) {
+            for (String tripKey : tripKeys) {
+                BusInventory inventory = inventories.get(tripKey);
+                if (inventory != null) {
+                    synchronized (inventory) {
+                        ReservationSnapshot.writeText(writer, tripKey, inventory.confirmedSeats(), inventory.waitingList);
+                    }
+                } else {
+                    ReservationSnapshot.BusBlock block = current.read(tripKey);
+                    ReservationSnapshot.writeText(writer, tripKey, block.seats, block.waitingList);
+                }
+            }
+            writer.flush();
+            gzip.finish();
+            out.getFD().sync();
+        }
+    }
+
+    private Path archiveFile(LocalDate date) {
+        return archiveDirectory.resolve(date + ".txt.gz");
+    }
+
+    // A date's archive is a series of gzip members, one per archiving run; each holds text blocks as in a text snapshot
+    private SortedMap<Integer, Customer> readArchivedReservations(String tripKey) {
+        SortedMap<Integer, Customer> bySeat = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(archiveFile(dateOf(tripKey)).toFile())), StandardCharsets.UTF_8))) {
+            String line;
+            boolean inTrip = false;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Reservations:")) {
+                    inTrip = line.substring("Reservations:".length()).equals(tripKey);
+                    if (inTrip) {
+                        bySeat.clear();
+                    }
+                } else if (line.startsWith("WaitingList:")) {
+                    inTrip = false;
+                } else if (inTrip) {
+                    int comma = line.indexOf(',');
+                    Customer customer = customerReg.getCustomerById(Integer.parseInt(line.substring(comma + 1)));
+                    if (customer != null) {
+                        bySeat.put(Integer.parseInt(line.substring(0, comma)), customer);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading reservation archive: " + e.getMessage());
+        }
+        return bySeat;
+    }
+
+    public void viewReservations(String busNumber) {
+        SortedMap<Integer, Customer> bySeat = getReservations(busNumber);
+        if (!bySeat.isEmpty()) {
+            System.out.println("Reservations for Bus " + busNumber + ":");
+            for (Map.Entry<Integer, Customer> entry : bySeat.entrySet()) {
+                System.out.println("Seat " + entry.getKey() + ": " + entry.getValue());
+            }
+        } else {
+            System.out.println("No reservations found for Bus " + busNumber);
+        }
+    }
+
+    public void viewWaitingList(String busNumber) {
+        List<Customer> waitQueue = getWaitingList(busNumber);
+        if (!waitQueue.isEmpty()) {
+            System.out.println("Waiting List for Bus " + busNumber + ":");
+            for (Customer customer : waitQueue) {
+                System.out.println(customer);
+            }
+        } else {
+            System.out.println("No waiting list found for Bus " + busNumber);
+        }
+    }
+
+    // Callers hold the snapshot lock, so the snapshot cannot be swapped out while a bus is being read from it
+    private BusInventory inventoryFor(String busNumber, int capacity) {
+        return inventories.computeIfAbsent(busNumber, k -> {
+            ReservationSnapshot current = snapshot;
+            if (current == null || !current.contains(k)) {
+                return new BusInventory(k, capacity);
+            }
+            try {
+                return new BusInventory(k, current.read(k));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error loading reservations for bus " + k, e);
+            }
+        });
+    }
+
+    // Returns null for a bus that has never had a reservation. Writers look the trip up holding the snapshot read
+    // lock: archivePastTrips removes trips under the exclusive lock, and one found before that would be a detached
+    // copy whose changes and journal records belong to no live trip
+    private BusInventory existingInventory(String busNumber) {
+        BusInventory inventory = inventories.get(busNumber);
+        ReservationSnapshot current = snapshot;
+        if (inventory != null || current == null || !current.contains(busNumber)) {
+            return inventory;
+        }
+        snapshotLock.readLock().lock();
+        try {
+            return inventoryFor(busNumber, 0);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the bus lock. Hands the given seats, and any a waiting group can use, to the waiting list in
+    // serving order, passing over groups that do not fit yet. Customers waiting on their own only wait on a full
+    // bus, so the given seats are all they can take. Consecutive single promotions share one PROMOTE record and
+    // each group gets a GROUP_PROMOTE record; returns {seat, customerId} pairs
+    private int[][] promoteFromWaitingList(BusInventory inventory, String busNumber, List<Integer> seats) {
+        List<int[]> promotions = new ArrayList<>();
+        Deque<Integer> free = new ArrayDeque<>(seats);
+        StringBuilder singles = null;
+        WaitingList.Party party;
+        while (!inventory.waitingList.isEmpty()
+                && (party = inventory.waitingList.pollFirstFitting(!free.isEmpty(), group -> fits(inventory, group, group.customerIds.size()))) != null) {
+            if (!party.group) {
+                int seat = free.removeFirst();
+                inventory.seats.assign(party.customerIds.get(0), seat);
+                promotions.add(new int[]{seat, party.customerIds.get(0)});
+                singles = (singles == null ? new StringBuilder("PROMOTE ").append(busNumber) : singles).append(',').append(seat);
+                continue;
+            }
+            if (singles != null) {
+                journal.append(singles.toString());
+                singles = null;
+            }
+            int[] customerIds = party.customerIds.stream().mapToInt(Integer::intValue).toArray();
+            List<Integer> groupSeats = seatGroup(inventory, party, customerIds);
+            StringBuilder record = new StringBuilder("GROUP_PROMOTE ").append(busNumber);
+            for (int i = 0; i < customerIds.length; i++) {
+                free.remove(groupSeats.get(i));
+                promotions.add(new int[]{groupSeats.get(i), customerIds[i]});
+                record.append(',').append(groupSeats.get(i)).append(',').append(customerIds[i]);
+            }
+            journal.append(record.toString());
+        }
+        if (singles != null) {
+            journal.append(singles.toString());
+        }
+        return promotions.toArray(new int[0][]);
+    }
+
+    // Caller holds the bus lock. Whether the group's seats are free, within the seats the bus had when it asked
+    private static boolean fits(BusInventory inventory, WaitingList.Party group, int size) {
+        return group.adjacent
+                ? inventory.seats.findFreeRun(size, group.busSeats) > 0
+                : group.busSeats - inventory.seats.size() >= size;
+    }
+
+    // Caller holds the bus lock and has checked that the group fits; returns the seats in member order
+    private static List<Integer> seatGroup(BusInventory inventory, WaitingList.Party group, int[] customerIds) {
+        List<Integer> seats = new ArrayList<>(customerIds.length);
+        int firstSeat = group.adjacent ? inventory.seats.findFreeRun(customerIds.length, group.busSeats) : 0;
+        for (int i = 0; i < customerIds.length; i++) {
+            if (group.adjacent) {
+                inventory.seats.assign(customerIds[i], firstSeat + i);
+                seats.add(firstSeat + i);
+            } else {
+                seats.add(inventory.seats.assign(customerIds[i]));
+            }
+        }
+        return seats;
+    }
+
+    // Replays one single promotion. A seat that cannot be assigned means the seats and the journal disagree; the
+    // customer is left first in line rather than polled and lost. Returns 0 when nobody was waiting on their own
+    private int promoteFromWaitingList(BusInventory inventory, int seat) {
+        if (inventory.waitingList.loneCount() == 0) {
+            return 0;
+        }
+        if (seat < 1 || inventory.seats.occupantOf(seat) != 0) {
+            throw new IllegalStateException("Cannot promote into seat " + seat + ", which is not free");
+        }
+        int promotedId = inventory.waitingList.pollFirstFitting(true, group -> false).customerIds.get(0);
+        inventory.seats.assign(promotedId, seat);
+        return promotedId;
+    }
+
+    private List<Customer> publishPromotions(String busNumber, int[][] promotions) {
+        List<Customer> promoted = new ArrayList<>(promotions.length);
+        for (int[] promotion : promotions) {
+            Customer customer = customerReg.getCustomerById(promotion[1]);
+            if (customer != null) {
+                promoted.add(customer);
+                outbox.publish(new Notification(Notification.Kind.PROMOTED, List.of(customer), busNumber, customer.getName(), promotion[0]));
+            }
+        }
+        return promoted;
+    }
+
+    // Caller holds the bus lock
+    private BookingResult enqueue(BusInventory inventory, String busNumber, int customerId, int tier) {
+        if (!inventory.waitingList.offer(customerId, tier)) {
+            return BookingResult.waitlisted(BookingResult.Status.ALREADY_WAITLISTED, inventory.waitingList.positionOf(customerId));
+        }
+        journal.append("WAIT " + busNumber + "," + customerId + (tier == WaitingList.STANDARD_TIER ? "" : "," + tier));
+        return BookingResult.waitlisted(BookingResult.Status.WAITLISTED, inventory.waitingList.positionOf(customerId));
+    }
+
+    private int registeredId(Customer customer) {
+        if (customer.getId() == 0) {
+            throw new IllegalArgumentException("Customer " + customer.getName() + " is not registered");
+        }
+        return customer.getId();
+    }
+
+    // IDs the registry no longer knows are left out
+    private List<Customer> resolve(int[] customerIds) {
+        List<Customer> customers = new ArrayList<>(customerIds.length);
+        for (int customerId : customerIds) {
+            Customer customer = customerReg.getCustomerById(customerId);
+            if (customer != null) {
+                customers.add(customer);
+            }
+        }
+        return customers;
+    }
+
+    // Buses that were never loaded are copied across from the previous snapshot without being decoded, unless
+    // they have just been archived
+    public void saveToFile() {
+        long started = Metrics.start();
+        try {
+            snapshotLock.writeLock().lock();
+            try {
+                Path temp = Paths.get(snapshotFileName + ".tmp");
+                ReservationSnapshot previous = snapshot;
+                try (ReservationSnapshot.Writer writer = new ReservationSnapshot.Writer(temp.toString(), journal.getSequence())) {
+                    for (Map.Entry<String, BusInventory> entry : inventories.entrySet()) {
+                        writer.writeBus(entry.getKey(), entry.getValue().confirmedSeats(), entry.getValue().waitingList);
+                    }
+                    if (previous != null) {
+                        for (String busNumber : previous.getBusNumbers()) {
+                            if (!inventories.containsKey(busNumber) && !isBefore(busNumber, archivedBefore)) {
+                                writer.copyBus(busNumber, previous.rawBlock(busNumber));
+                            }
+                        }
+                    }
+                }
+                // The previous snapshot keeps serving unloaded buses until its replacement is open; its channel
+                // still reads the old file after the move
+                Files.move(temp, Paths.get(snapshotFileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshot = ReservationSnapshot.open(snapshotFileName, customerReg);
+                if (previous != null) {
+                    previous.close();
+                }
+                PERSISTENCE.snapshotWritten(snapshotFileName);
+                journal.truncate();
+            } catch (IOException e) {
+                System.out.println("Error saving reservations: " + e.getMessage());
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        } finally {
+            SAVE.record(started);
+        }
+    }
+
+    public void compactIfNeeded() {
+        if (journal.getRecordCount() >= Journal.COMPACTION_THRESHOLD) {
+            saveToFile();
+        }
+    }
+
+    // The customer registry must be loaded first
+    public void loadFromFile() {
+        long started = Metrics.start();
+        try {
+            snapshotLock.writeLock().lock();
+            try {
+                loadSnapshotAndJournal();
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        } finally {
+            LOAD.record(started);
+        }
+    }
+
+    // Only the snapshot's index is read here; each bus is decoded on first use
+    private void loadSnapshotAndJournal() {
+        long snapshotSequence = 0;
+        try {
+            if (!Files.exists(Paths.get(snapshotFileName)) && Files.exists(Paths.get(fileName))) {
+                ReservationSnapshot.textToBinary(fileName, snapshotFileName, customerReg);
+                System.out.println("Converted " + fileName + " to " + snapshotFileName);
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            inventories.clear();
+            // Holds live only in memory and go with the inventories they were taken on
+            for (Hold hold : holds.values()) {
+                hold.cancel();
+            }
+            holds.clear();
+            snapshot = ReservationSnapshot.open(snapshotFileName, customerReg);
+            if (snapshot != null) {
+                snapshotSequence = snapshot.getJournalSequence();
+            }
+        } catch (IOException e) {
+            System.out.println("Error loading reservations: " + e.getMessage());
+        }
+        journal.replay(snapshotSequence, this::applyJournalRecord);
+        // Replayed records change the inventories directly, so each bus republishes its view once at the end
+        for (BusInventory inventory : inventories.values()) {
+            synchronized (inventory) {
+                inventory.publish();
+            }
+        }
+        rebuildAnalytics();
+    }
+
+    private void applyJournalRecord(String record) {
+        try {
+            int space = record.indexOf(' ');
+            String operation = space < 0 ? record : record.substring(0, space);
+            String payload = record.substring(space + 1);
+            int comma = payload.indexOf(',');
+            if (comma < 0) {
+                throw new IllegalArgumentException("Missing bus number: " + record);
+            }
+            BusInventory inventory = inventoryFor(payload.substring(0, comma), 0);
+            String rest = payload.substring(comma + 1);
+            switch (operation) {
+                case "RESERVE":
+                    ReservationSnapshot.assignSeat(inventory.seats, rest, customerReg);
+                    break;
+                case "WAIT":
+                    ReservationSnapshot.offerWaiting(inventory.waitingList, rest, customerReg);
+                    break;
+                case "GROUP_RESERVE": {
+                    String[] fields = rest.split(",");
+                    for (int i = 0; i + 1 < fields.length; i += 2) {
+                        inventory.seats.assign(Integer.parseInt(fields[i + 1]), Integer.parseInt(fields[i]));
+                    }
+                    break;
+                }
+                case "GROUP_WAIT": {
+                    // tier,adjacent,busSeats,customerId...
+                    String[] fields = rest.split(",");
+                    int[] customerIds = new int[fields.length - 3];
+                    for (int i = 0; i < customerIds.length; i++) {
+                        customerIds[i] = Integer.parseInt(fields[i + 3]);
+                    }
+                    inventory.waitingList.offerGroup(customerIds, Integer.parseInt(fields[0]), fields[1].equals("1"), Integer.parseInt(fields[2]));
+                    break;
+                }
+                case "GROUP_PROMOTE": {
+                    String[] fields = rest.split(",");
+                    for (int i = 0; i + 1 < fields.length; i += 2) {
+                        int seat = Integer.parseInt(fields[i]);
+                        int customerId = Integer.parseInt(fields[i + 1]);
+                        if (!inventory.waitingList.remove(customerId) || !inventory.seats.assign(customerId, seat)) {
+                            throw new IllegalArgumentException("Cannot seat customer " + customerId + " in seat " + seat);
+                        }
+                    }
+                    break;
+                }
+                case "WITHDRAW":
+                    inventory.waitingList.remove(Integer.parseInt(rest));
+                    break;
+                case "CANCEL": {
+                    // The live process freed this seat; after a snapshot reload the customer's other seats may be
+                    // chained differently, so releasing "their first seat" could free the wrong one
+                    int seatEnd = rest.indexOf(',');
+                    int seat = Integer.parseInt(rest.substring(0, seatEnd));
+                    int customerId = ReservationSnapshot.customerId(rest.substring(seatEnd + 1), customerReg);
+                    if (!inventory.seats.releaseSeat(customerId, seat)) {
+                        throw new IllegalArgumentException("Seat " + seat + " is not held by customer " + customerId);
+                    }
+                    break;
+                }
+                case "PROMOTE":
+                    for (String seat : rest.split(",")) {
+                        promoteFromWaitingList(inventory, Integer.parseInt(seat));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown journal record: " + record);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Skipping invalid record in reservation journal: " + record);
+        }
+    }
+
+    // Checks the invariants a concurrent run must preserve on the buses loaded so far; returns a description of each violation
+    public List<String> verifyInventory(BusRegistration busReg) {
+        List<String> violations = new ArrayList<>();
+        for (Map.Entry<String, BusInventory> entry : inventories.entrySet()) {
+            Bus bus = busReg.getBusByNumber(busNumberOf(entry.getKey()));
+            BusInventory inventory = entry.getValue();
+            synchronized (inventory) {
+                int occupied = inventory.seats.size();
+                if (bus != null && occupied > bus.getTotalSeats()) {
+                    violations.add("Bus " + entry.getKey() + " oversold: " + occupied + " of " + bus.getTotalSeats());
+                }
+                if (bus != null && inventory.waitingList.loneCount() > 0 && occupied < bus.getTotalSeats()) {
+                    violations.add("Bus " + entry.getKey() + " has free seats while " + inventory.waitingList.loneCount() + " are waiting");
+                }
+                for (WaitingList.Party group : inventory.waitingList.groups()) {
+                    if (fits(inventory, group, group.customerIds.size())) {
+                        violations.add("Bus " + entry.getKey() + " has seats for waiting group " + group.customerIds);
+                    }
+                }
+                int held = 0;
+                for (int seat = inventory.seats.nextOccupiedSeat(0); seat > 0; seat = inventory.seats.nextOccupiedSeat(seat)) {
+                    held += inventory.seats.occupantOf(seat) < 0 ? 1 : 0;
+                }
+                if (held != inventory.heldSeats) {
+                    violations.add("Bus " + entry.getKey() + " has " + held + " held seats but counts " + inventory.heldSeats);
+                }
+                BusView view = inventory.view;
+                if (view.occupied != occupied || !Arrays.equals(view.occupantsBySeat, inventory.seats.occupantsBySeat())
+                        || !Arrays.equals(view.seatHolders, BusView.seatHolders(view.occupantsBySeat))
+                        || !Arrays.equals(view.waiting, inventory.waitingList.customerIds())) {
+                    violations.add("Bus " + entry.getKey() + " published a view that does not match its seats and waiting list");
+                }
+            }
+        }
+        return violations;
+    }
+
+    // From here on every change a trip publishes also moves the running per-bus and per-route totals.
+    // The bus registry supplies each trip's route, fare and capacity
+    public void enableAnalytics(BusRegistration busReg) {
+        snapshotLock.writeLock().lock();
+        try {
+            analyticsBusReg = busReg;
+            rebuildAnalytics();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    // Null until enableAnalytics
+    public OccupancyAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    // Recomputes the analytics from every live trip, loaded or not, and compares them with the running totals.
+    // Bookings wait while it runs; returns a description of each difference
+    public List<String> verifyAnalytics() {
+        snapshotLock.writeLock().lock();
+        try {
+            OccupancyAnalytics current = analytics;
+            return current == null ? List.of() : current.differences(OccupancyAnalytics.recompute(analyticsBusReg, tripCounts()));
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the exclusive snapshot lock
+    private void rebuildAnalytics() {
+        if (analyticsBusReg == null) {
+            return;
+        }
+        for (BusInventory inventory : inventories.values()) {
+            inventory.markReported();
+        }
+        analytics = OccupancyAnalytics.recompute(analyticsBusReg, tripCounts());
+    }
+
+    // {seats sold, customers waiting} per live trip. Unloaded trips are counted straight from their snapshot
+    // blocks, in parallel. Caller holds the exclusive snapshot lock
+    private Map<String, int[]> tripCounts() {
+        Map<String, int[]> counts = new ConcurrentHashMap<>();
+        for (BusInventory inventory : inventories.values()) {
+            counts.put(inventory.tripKey, inventory.counts());
+        }
+        ReservationSnapshot current = snapshot;
+        if (current != null) {
+            current.getBusNumbers().parallelStream()
+                    .filter(tripKey -> !inventories.containsKey(tripKey) && !isBefore(tripKey, archivedBefore))
+                    .forEach(tripKey -> {
+                        try {
+                            counts.put(tripKey, current.counts(tripKey));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Error reading reservations for bus " + tripKey, e);
+                        }
+                    });
+        }
+        return counts;
+    }
+
+    // Occupied seats per loaded bus, for the metrics gauges
+    public Map<String, Integer> getOccupancy() {
+        Map<String, Integer> occupancy = new HashMap<>();
+        for (Map.Entry<String, BusInventory> entry : inventories.entrySet()) {
+            occupancy.put(entry.getKey(), entry.getValue().view.occupied);
+        }
+        return occupancy;
+    }
+
+    public Map<String, Integer> getWaitlistDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, BusInventory> entry : inventories.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().view.waiting.length);
+        }
+        return depths;
+    }
+
+    public int countReserved() {
+        int total = 0;
+        for (BusInventory inventory : inventories.values()) {
+            synchronized (inventory) {
+                total += inventory.seats.size();
+            }
+        }
+        return total;
+    }
+
+    public int countWaiting() {
+        int total = 0;
+        for (BusInventory inventory : inventories.values()) {
+            synchronized (inventory) {
+                total += inventory.waitingList.size();
+            }
+        }
+        return total;
+    }
+}
+
+// OccupancyAnalytics class
+// Seats sold, revenue and waitlist depth per bus and per route, and a load-factor histogram over trips.
+// The reservation system reports each trip's change as it publishes it, so reports read running totals
+// instead of walking the reservations; recompute() builds the same figures from scratch in parallel.
+// Only trips with a seat sold or someone waiting are counted.
+class OccupancyAnalytics {
+    // Tenths of capacity; the last bucket holds the full trips
+    public static final int BUCKETS = 11;
+
+    private final BusRegistration busReg;
+    private final ConcurrentHashMap<String, Totals> buses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Totals> routes = new ConcurrentHashMap<>();
+    // Routes with at least one counted trip, busiest first
+    private final ConcurrentSkipListSet<Rank> ranking = new ConcurrentSkipListSet<>();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    // Running totals for one bus or route, guarded by their own lock
+    private static final class Totals {
+        final String key;
+        // Routes are matched ignoring case and surrounding spaces, and shown under the spelling that sorts first
+        // (String.compareTo), which unlike the first one seen does not depend on the order trips were counted in,
+        // so a rebuild names a route as the running totals do; buses by number
+        String name;
+        int trips;
+        long capacity;
+        int sold;
+        int waiting;
+        long revenueCents;
+        Rank rank;
+
+        Totals(String key) {
+            this.key = key;
+        }
+
+        Stats stats() {
+            return new Stats(name == null ? key : name, trips, capacity, sold, waiting, revenueCents);
+        }
+    }
+
+    private static final class Rank implements Comparable<Rank> {
+        final int sold;
+        final Totals totals;
+
+        Rank(int sold, Totals totals) {
+            this.sold = sold;
+            this.totals = totals;
+        }
+
+        @Override
+        public int compareTo(Rank other) {
+            int bySold = Integer.compare(other.sold, sold);
+            return bySold != 0 ? bySold : totals.key.compareTo(other.totals.key);
+        }
+    }
+
+    public static final class Stats {
+        private final String name;
+        private final int trips;
+        private final long capacity;
+        private final int seatsSold;
+        private final int waiting;
+        private final long revenueCents;
+
+        Stats(String name, int trips, long capacity, int seatsSold, int waiting, long revenueCents) {
+            this.name = name;
+            this.trips = trips;
+            this.capacity = capacity;
+            this.seatsSold = seatsSold;
+            this.waiting = waiting;
+            this.revenueCents = revenueCents;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getTrips() {
+            return trips;
+        }
+
+        public long getSeatsOffered() {
+            return capacity;
+        }
+
+        public int getSeatsSold() {
+            return seatsSold;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public double getRevenue() {
+            return revenueCents / 100.0;
+        }
+
+        // Seats sold over the seats offered on the counted trips
+        public double getLoadFactor() {
+            return capacity == 0 ? 0 : (double) seatsSold / capacity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stats)) return false;
+            Stats other = (Stats) o;
+            return name.equals(other.name) && trips == other.trips && capacity == other.capacity
+                    && seatsSold == other.seatsSold && waiting == other.waiting && revenueCents == other.revenueCents;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, trips, capacity, seatsSold, waiting, revenueCents);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + seatsSold + " sold on " + trips + " trips, " + waiting + " waiting, revenue "
+                    + String.format("%.2f", getRevenue()) + ", load " + String.format("%.0f%%", getLoadFactor() * 100);
+        }
+    }
+
+    public OccupancyAnalytics(BusRegistration busReg) {
+        this.busReg = busReg;
+    }
+
+    // Builds the figures from scratch out of {seats sold, customers waiting} per trip key
+    public static OccupancyAnalytics recompute(BusRegistration busReg, Map<String, int[]> tripCounts) {
+        OccupancyAnalytics analytics = new OccupancyAnalytics(busReg);
+        tripCounts.entrySet().parallelStream()
+                .forEach(entry -> analytics.tripChanged(entry.getKey(), 0, 0, entry.getValue()[0], entry.getValue()[1]));
+        return analytics;
+    }
+
+    // Called once per published change to a trip, under that trip's lock, with the counts it last reported
+    void tripChanged(String tripKey, int soldBefore, int waitingBefore, int soldAfter, int waitingAfter) {
+        Bus bus = busReg.getBusByNumber(ReservationSystem.busNumberOf(tripKey));
+        if (bus == null) {
+            return;
+        }
+        int capacity = bus.getTotalSeats();
+        boolean counted = soldBefore > 0 || waitingBefore > 0;
+        boolean counts = soldAfter > 0 || waitingAfter > 0;
+        if (counted) {
+            histogram.decrementAndGet(bucket(soldBefore, capacity));
+        }
+        if (counts) {
+            histogram.incrementAndGet(bucket(soldAfter, capacity));
+        }
+        int trips = (counts ? 1 : 0) - (counted ? 1 : 0);
+        long fareCents = Math.round(bus.getFare() * 100);
+        update(buses.computeIfAbsent(bus.getBusNumber(), Totals::new), null,
+                trips, capacity, soldAfter - soldBefore, waitingAfter - waitingBefore, fareCents);
+        update(routes.computeIfAbsent(RouteIndex.routeKey(bus.getStartPoint(), bus.getEndPoint()), Totals::new),
+                bus.getStartPoint() + " -> " + bus.getEndPoint(),
+                trips, capacity, soldAfter - soldBefore, waitingAfter - waitingBefore, fareCents);
+    }
+
+    // Only routes are named and ranked
+    private void update(Totals totals, String name, int trips, int capacity, int sold, int waiting, long fareCents) {
+        boolean ranked = name != null;
+        synchronized (totals) {
+            if (ranked && (totals.name == null || name.compareTo(totals.name) < 0)) {
+                totals.name = name;
+            }
+            totals.trips += trips;
+            totals.capacity += (long) trips * capacity;
+            totals.sold += sold;
+            totals.waiting += waiting;
+            totals.revenueCents += sold * fareCents;
+            if (ranked && (sold != 0 || trips != 0)) {
+                if (totals.rank != null) {
+                    ranking.remove(totals.rank);
+                }
+                totals.rank = totals.trips > 0 ? new Rank(totals.sold, totals) : null;
+                if (totals.rank != null) {
+                    ranking.add(totals.rank);
+                }
+            }
+        }
+    }
+
+    private static int bucket(int sold, int capacity) {
+        return capacity <= 0 ? BUCKETS - 1 : Math.min(BUCKETS - 1, (int) ((long) sold * (BUCKETS - 1) / capacity));
+    }
+
+    // The k routes with the most seats sold
+    public List<Stats> topRoutes(int k) {
+        List<Stats> top = new ArrayList<>(Math.min(k, 64));
+        for (Iterator<Rank> it = ranking.iterator(); it.hasNext() && top.size() < k; ) {
+            Totals totals = it.next().totals;
+            synchronized (totals) {
+                top.add(totals.stats());
+            }
+        }
+        return top;
+    }
+
+    // Counted trips per tenth of capacity sold; the last entry is the full trips
+    public long[] loadFactorHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public Map<String, Double> revenueByRoute() {
+        Map<String, Double> revenue = new TreeMap<>();
+        for (Stats stats : snapshot(routes).values()) {
+            revenue.put(stats.getName(), stats.getRevenue());
+        }
+        return revenue;
+    }
+
+    // Null for a route or bus with nothing sold or waiting
+    public Stats getRoute(String startPoint, String endPoint) {
+        return stats(routes.get(RouteIndex.routeKey(startPoint, endPoint)));
+    }
+
+    public Stats getBus(String busNumber) {
+        return stats(buses.get(busNumber));
+    }
+
+    public Map<String, Stats> getBuses() {
+        return snapshot(buses);
+    }
+
+    // Describes every figure that differs from the other's; empty when they agree
+    public List<String> differences(OccupancyAnalytics other) {
+        List<String> differences = new ArrayList<>();
+        if (!Arrays.equals(loadFactorHistogram(), other.loadFactorHistogram())) {
+            differences.add("Load-factor histogram " + Arrays.toString(loadFactorHistogram()) + ", expected " + Arrays.toString(other.loadFactorHistogram()));
+        }
+        compare("Route", snapshot(routes), snapshot(other.routes), differences);
+        compare("Bus", snapshot(buses), snapshot(other.buses), differences);
+        if (!topRoutes(Integer.MAX_VALUE).equals(other.topRoutes(Integer.MAX_VALUE))) {
+            differences.add("Route ranking does not match");
+        }
+        return differences;
+    }
+
+    private static void compare(String kind, Map<String, Stats> actual, Map<String, Stats> expected, List<String> differences) {
+        Set<String> keys = new TreeSet<>(actual.keySet());
+        keys.addAll(expected.keySet());
+        for (String key : keys) {
+            if (!Objects.equals(actual.get(key), expected.get(key))) {
+                differences.add(kind + " " + actual.get(key) + ", expected " + expected.get(key));
+            }
+        }
+    }
+
+    private static Stats stats(Totals totals) {
+        if (totals == null) {
+            return null;
+        }
+        synchronized (totals) {
+            return totals.trips > 0 ? totals.stats() : null;
+        }
+    }
+
+    private static Map<String, Stats> snapshot(Map<String, Totals> totalsByKey) {
+        Map<String, Stats> stats = new TreeMap<>();
+        for (Map.Entry<String, Totals> entry : totalsByKey.entrySet()) {
+            Stats current = stats(entry.getValue());
+            if (current != null) {
+                stats.put(entry.getKey(), current);
+            }
+        }
+        return stats;
+    }
+}
+
+// BulkImporter class
+// Loads CSV exports of buses, customers and reservations. Each chunk of rows is parsed and validated in
+// parallel, then inserted in file order without journalling, and everything is persisted with a single
+// snapshot write at the end. Run with: java BusReservationDSA --import buses|customers|reservations file.csv
+class BulkImporter {
+    static final int CHUNK_ROWS = 65_536;
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private final CustomerRegistration customerReg;
+    private final BusRegistration busReg;
+    private final ReservationSystem reservationSystem;
+
+    static class Report {
+        private final List<String> errors = new ArrayList<>();
+        private int imported;
+        private int failed;
+        private long elapsedMillis;
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        // The first MAX_REPORTED_ERRORS problems, as "line N: message"
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        void error(long line, String message) {
+            failed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("line " + line + ": " + message);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + imported + " rows, " + failed + " rejected, in " + elapsedMillis + " ms";
+        }
+    }
+
+    // A parsed row or the reason it was rejected
+    private static class Row<T> {
+        final long line;
+        final T value;
+        final String error;
+
+        Row(long line, T value, String error) {
+            this.line = line;
+            this.value = value;
+            this.error = error;
+        }
+    }
+
+    private interface Inserter<T> {
+        // Returns the rejection message for each row, or null where the row was inserted
+        List<String> insert(List<T> rows);
+    }
+
+    public BulkImporter(CustomerRegistration customerReg, BusRegistration busReg, ReservationSystem reservationSystem) {
+        this.customerReg = customerReg;
+        this.busReg = busReg;
+        this.reservationSystem = reservationSystem;
+    }
+
+    // busNumber,totalSeats,startPoint,endPoint,startTime,fare[,arrivalTime]
+    public Report importBuses(BufferedReader reader) throws IOException {
+        return importRows(reader, "busNumber", BulkImporter::parseBus, buses -> {
+            boolean[] added = busReg.registerBuses(buses);
+            List<String> errors = new ArrayList<>(buses.size());
+            for (int i = 0; i < buses.size(); i++) {
+                errors.add(added[i] ? null : "Bus " + buses.get(i).getBusNumber() + " is already registered");
+            }
+            return errors;
+        }, busReg::saveToFile);
+    }
+
+    // name,mobileNumber,email,city,age
+    public Report importCustomers(BufferedReader reader) throws IOException {
+        return importRows(reader, "name", BulkImporter::parseCustomer, customers -> {
+            List<Customer> registered = customerReg.registerCustomers(customers);
+            List<String> errors = new ArrayList<>(customers.size());
+            for (Customer customer : registered) {
+                errors.add(customer != null ? null : "A customer with this mobile number or email is already registered");
+            }
+            return errors;
+        }, customerReg::saveToFile);
+    }
+
+    // busNumber,customer[,tier], where customer is a mobile number, email or name. Rows for a full bus
+    // join its waiting list.
+    public Report importReservations(BufferedReader reader) throws IOException {
+        return importRows(reader, "busNumber", this::parseBooking, requests -> {
+            List<String> errors = new ArrayList<>(requests.size());
+            for (BookingResult result : reservationSystem.importReservations(requests)) {
+                errors.add(result.getStatus() == BookingResult.Status.ALREADY_WAITLISTED
+                        ? "Customer is already on the waiting list at position " + result.getPosition() : null);
+            }
+            return errors;
+        }, reservationSystem::saveToFile);
+    }
+
+    private <T> Report importRows(BufferedReader reader, String headerField, Function<String, T> parse,
+                                  Inserter<T> inserter, Runnable flush) throws IOException {
+        long start = System.nanoTime();
+        Report report = new Report();
+        List<String> lines = new ArrayList<>(CHUNK_ROWS);
+        long firstLine = 1;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (lineNumber == 1 && isHeader(line, headerField)) {
+                firstLine = 2;
+                continue;
+            }
+            lines.add(line);
+            if (lines.size() == CHUNK_ROWS) {
+                importChunk(lines, firstLine, parse, inserter, report);
+                firstLine = lineNumber + 1;
+                lines.clear();
+            }
+        }
+        importChunk(lines, firstLine, parse, inserter, report);
+        if (report.imported > 0) {
+            flush.run();
+        }
+        report.elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        return report;
+    }
+
+    // A first line that does not even split into fields is no header; it is imported, and reported, as a bad row
+    private static boolean isHeader(String line, String headerField) {
+        try {
+            return new DataFields(line).next().trim().equalsIgnoreCase(headerField);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void importChunk(List<String> lines, long firstLine, Function<String, T> parse,
+                                        Inserter<T> inserter, Report report) {
+        Row<T>[] rows = (Row<T>[]) new Row<?>[lines.size()];
+        Arrays.parallelSetAll(rows, i -> {
+            long line = firstLine + i;
+            String text = lines.get(i).trim();
+            if (text.isEmpty()) {
+                return null;
+            }
+            try {
+                return new Row<>(line, parse.apply(text), null);
+            } catch (IllegalArgumentException e) {
+                return new Row<>(line, null, e.getMessage());
+            }
+        });
+
+        List<T> valid = new ArrayList<>(rows.length);
+        for (Row<T> row : rows) {
+            if (row != null && row.error == null) {
+                valid.add(row.value);
+            }
+        }
+        List<String> insertErrors = valid.isEmpty() ? List.of() : inserter.insert(valid);
+
+        // Reported in file order
+        int inserted = 0;
+        for (Row<T> row : rows) {
+            if (row == null) continue;
+            String error = row.error != null ? row.error : insertErrors.get(inserted++);
+            if (error == null) {
+                report.imported++;
+            } else {
+                report.error(row.line, error);
+            }
+        }
+    }
+
+    private static Bus parseBus(String line) {
+        Bus bus = Bus.fromDataString(line);
+        requireText(bus.getBusNumber(), "busNumber");
+        requireText(bus.getStartPoint(), "startPoint");
+        requireText(bus.getEndPoint(), "endPoint");
+        requireText(bus.getStartTime(), "startTime");
+        if (bus.getTotalSeats() <= 0) {
+            throw new IllegalArgumentException("totalSeats must be positive: " + line);
+        }
+        if (bus.getFare() < 0) {
+            throw new IllegalArgumentException("fare must not be negative: " + line);
+        }
+        return bus;
+    }
+
+    private static Customer parseCustomer(String line) {
+        Customer customer = Customer.fromDataString(line);
+        requireText(customer.getName(), "name");
+        requireText(customer.getMobileNumber(), "mobileNumber");
+        requireText(customer.getEmail(), "email");
+        if (customer.getAge() < 0) {
+            throw new IllegalArgumentException("age must not be negative: " + line);
+        }
+        return customer;
+    }
+
+    // Buses and customers must already be registered; both lookups are lock-free, so they run in the parallel phase
+    private ReservationSystem.BookingRequest parseBooking(String line) {
+        DataFields fields = new DataFields(line);
+        String busNumber = fields.next().trim();
+        if (!fields.hasNext()) {
+            throw new IllegalArgumentException("Invalid data format for reservation: " + line);
+        }
+        String customerKey = fields.next().trim();
+        int tier = fields.hasNext() ? Integer.parseInt(fields.next().trim()) : WaitingList.STANDARD_TIER;
+        if (fields.hasNext()) {
+            throw new IllegalArgumentException("Invalid data format for reservation: " + line);
+        }
+        Bus bus = busReg.getBusByNumber(busNumber);
+        if (bus == null) {
+            throw new IllegalArgumentException("No bus registered with: " + busNumber);
+        }
+        Customer customer = customerReg.findCustomer(customerKey);
+        if (customer == null) {
+            throw new IllegalArgumentException("Customer not found: " + customerKey);
+        }
+        return new ReservationSystem.BookingRequest(customer, bus, tier);
+    }
+
+    private static void requireText(String value, String field) {
+        if (value.isBlank()) {
+            throw new IllegalArgumentException(field + " must not be blank");
+        }
+    }
+}
+
+// ConcurrencyStressCheck class
+// Hammers a few small buses from many threads, then checks that no bus was oversold, that the
+// waiting list only holds people while the bus is full, and that replaying the journal rebuilds
+// exactly the same state. Run with: java BusReservationDSA --stress [threads] [operations]
+class ConcurrencyStressCheck {
+    public static boolean run(String[] args) throws Exception {
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int operationsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int busCount = 8;
+        int capacity = 20;
+        int customerCount = 400;
+
+        Path directory = Files.createTempDirectory("bus-stress");
+        String busFile = directory.resolve("buses.txt").toString();
+        String reservationFile = directory.resolve("reservations.txt").toString();
+        BusRegistration busReg = new BusRegistration(busFile);
+        CustomerRegistration customerReg = new CustomerRegistration(directory.resolve("customers.txt").toString());
+        StubNotificationSink notifications = new StubNotificationSink();
+        ReservationSystem reservationSystem = new ReservationSystem(reservationFile, customerReg,
+                new NotificationOutbox(List.of(notifications), 100_000, 1024, 1000));
+        for (int i = 0; i < busCount; i++) {
+            busReg.registerBus(new Bus("S" + i, capacity, "Here", i % 2 == 0 ? "There" : "Elsewhere", "08:00", 10 + i));
+        }
+        reservationSystem.enableAnalytics(busReg);
+        Customer[] customers = new Customer[customerCount];
+        for (int i = 0; i < customerCount; i++) {
+            customers[i] = customerReg.registerCustomer(new Customer("c" + i, String.valueOf(i), "c" + i + "@example.com", "City", 30));
+        }
+
+        AtomicInteger reserved = new AtomicInteger();
+        AtomicInteger waitlisted = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        AtomicInteger promoted = new AtomicInteger();
+        AtomicInteger withdrawn = new AtomicInteger();
+        AtomicInteger inconsistentReads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long startNanos = System.nanoTime();
+        try {
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        Customer customer = customers[random.nextInt(customerCount)];
+                        String busNumber = "S" + random.nextInt(busCount);
+                        int operation = random.nextInt(12);
+                        if (operation < 3) {
+                            BookingResult result = operation == 0
+                                    ? reservationSystem.cancelAllReservations(customer, busNumber)
+                                    : reservationSystem.cancelReservation(customer, busNumber);
+                            if (result.getStatus() == BookingResult.Status.CANCELLED) {
+                                cancelled.addAndGet(result.getSeats().size());
+                                promoted.addAndGet(result.getPromotedCustomers().size());
+                            }
+                        } else if (operation == 4) {
+                            List<Customer> group = new ArrayList<>(new LinkedHashSet<>(List.of(customers[random.nextInt(customerCount)],
+                                    customers[random.nextInt(customerCount)], customer)));
+                            BookingResult result = reservationSystem.reserveGroup(group, busNumber, busReg, random.nextBoolean(), true);
+                            if (result.getStatus() == BookingResult.Status.RESERVED) {
+                                reserved.addAndGet(group.size());
+                            } else if (result.getStatus() == BookingResult.Status.WAITLISTED) {
+                                waitlisted.addAndGet(group.size());
+                            }
+                        } else if (operation == 5 || operation == 6) {
+                            // Lock-free reads must always see a whole view, never one caught mid-booking
+                            int available = reservationSystem.getAvailableSeats(busReg.getBusByNumber(busNumber));
+                            int seated = reservationSystem.getReservations(busNumber).size();
+                            if (available < 0 || available > capacity || seated > capacity) {
+                                inconsistentReads.incrementAndGet();
+                            }
+                        } else if (operation == 3) {
+                            BookingResult result = reservationSystem.withdrawFromWaitingList(customer, busNumber);
+                            if (result.getStatus() == BookingResult.Status.WITHDRAWN) {
+                                withdrawn.incrementAndGet();
+                                promoted.addAndGet(result.getPromotedCustomers().size());
+                            }
+                        } else if (operation == 7) {
+                            // A checkout: the held seat is either bought or handed back to the waiting list
+                            BookingResult hold = reservationSystem.holdSeat(customer, busNumber, busReg);
+                            if (hold.getStatus() == BookingResult.Status.HELD) {
+                                if (random.nextBoolean()) {
+                                    reservationSystem.confirmHold(hold.getHoldId());
+                                    reserved.incrementAndGet();
+                                } else {
+                                    promoted.addAndGet(reservationSystem.releaseHold(hold.getHoldId()).getPromotedCustomers().size());
+                                }
+                            }
+                        } else {
+                            BookingResult result = reservationSystem.reserveSeat(customer, busNumber, busReg, random.nextInt(2));
+                            if (result.getStatus() == BookingResult.Status.RESERVED) {
+                                reserved.incrementAndGet();
+                            } else if (result.getStatus() == BookingResult.Status.WAITLISTED) {
+                                waitlisted.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+            System.setOut(console);
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+        List<String> violations = new ArrayList<>(reservationSystem.verifyInventory(busReg));
+        violations.addAll(reservationSystem.verifyAnalytics());
+        if (inconsistentReads.get() > 0) {
+            violations.add(inconsistentReads.get() + " reads saw an impossible seat count");
+        }
+        int expectedReserved = reserved.get() + promoted.get() - cancelled.get();
+        int expectedWaiting = waitlisted.get() - promoted.get() - withdrawn.get();
+        if (reservationSystem.countReserved() != expectedReserved) {
+            violations.add("Reserved seats " + reservationSystem.countReserved() + ", expected " + expectedReserved);
+        }
+        if (reservationSystem.countWaiting() != expectedWaiting) {
+            violations.add("Waiting customers " + reservationSystem.countWaiting() + ", expected " + expectedWaiting);
+        }
+
+        reservationSystem.getOutbox().shutdown();
+        ReservationSystem replayed = new ReservationSystem(reservationFile, customerReg, new NotificationOutbox(List.of(notifications)));
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            replayed.loadFromFile();
+        } finally {
+            System.setOut(console);
+        }
+        for (int i = 0; i < busCount; i++) {
+            String busNumber = "S" + i;
+            if (!replayed.getReservations(busNumber).equals(reservationSystem.getReservations(busNumber))
+                    || !replayed.getWaitingList(busNumber).equals(reservationSystem.getWaitingList(busNumber))) {
+                violations.add("Journal replay of bus " + busNumber + " does not match the live state");
+            }
+        }
+        checkArchive(reservationSystem, busReg, customerReg, customers, reservationFile, violations);
+
+        System.out.println(threads + " threads x " + operationsPerThread + " operations in " + elapsedMillis + " ms: " +
+                reserved.get() + " reserved, " + waitlisted.get() + " waitlisted, " +
+                cancelled.get() + " cancelled, " + promoted.get() + " promoted");
+        System.out.println("Notifications: " + reservationSystem.getOutbox().getCounters());
+        if (violations.isEmpty()) {
+            System.out.println("No overselling or waiting-list inconsistencies found.");
+            return true;
+        }
+        for (String violation : violations) {
+            System.out.println("FAILED: " + violation);
+        }
+        return false;
+    }
+
+    // Books two dated trips, archives them as if two days had passed, and reads them back live and after a reload
+    private static void checkArchive(ReservationSystem reservationSystem, BusRegistration busReg, CustomerRegistration customerReg,
+                                     Customer[] customers, String reservationFile, List<String> violations) {
+        LocalDate today = LocalDate.now();
+        List<String> trips = List.of(ReservationSystem.tripKey("S0", today), ReservationSystem.tripKey("S1", today.plusDays(1)));
+        Map<String, SortedMap<Integer, Customer>> booked = new HashMap<>();
+        for (int i = 0; i < trips.size(); i++) {
+            for (int j = 0; j < 5; j++) {
+                reservationSystem.reserveSeat(customers[i * 5 + j], trips.get(i), busReg);
+            }
+            booked.put(trips.get(i), reservationSystem.getReservations(trips.get(i)));
+        }
+        SortedMap<Integer, Customer> undated = reservationSystem.getReservations("S0");
+        if (reservationSystem.archivePastTrips(today.plusDays(2)) != trips.size()) {
+            violations.add("Archiving did not move exactly the " + trips.size() + " dated trips");
+        }
+        ReservationSystem reloaded = new ReservationSystem(reservationFile, customerReg, new NotificationOutbox(List.of(new StubNotificationSink())));
+        reloaded.loadFromFile();
+        for (String trip : trips) {
+            if (booked.get(trip).size() != 5 || !reservationSystem.getReservations(trip).equals(booked.get(trip))
+                    || !reloaded.getReservations(trip).equals(booked.get(trip))) {
+                violations.add("Archived trip " + trip + " does not read back as it was booked");
+            }
+        }
+        if (!reloaded.getReservations("S0").equals(undated)) {
+            violations.add("Archiving changed the undated bus S0");
+        }
+        violations.addAll(reservationSystem.verifyInventory(busReg));
+        violations.addAll(reservationSystem.verifyAnalytics());
+        reloaded.getOutbox().shutdown();
+    }
+}
+
+// CommandDriver class
+// Headless driving: --script runs a file of commands against the live data files, --loadgen generates a skewed
+// read/write workload and runs it on a scratch copy. Each command is one line, "verb arg,arg,...":
+//   customer name,mobile,email,city,age     bus number,seats,from,to,departure,fare[,arrival]
+//   search from,to                          seats bus[,date]            reservations bus[,date]
+//   reserve customer,bus[,date]             cancel customer,bus[,date]
+//   waitlist customer,bus[,date]            withdraw customer,bus[,date]            save
+//   hold customer,bus[,date]                confirm holdId                          release holdId
+// Customers are named by mobile number, email or name, and an argument holding a comma is double-quoted as in the
+// data files. Blank lines and lines starting with # are skipped.
+class CommandDriver {
+    private static final int OUTPUT_BUFFER_BYTES = 1 << 16;
+    private static final Set<String> VERBS = Set.of("customer", "bus", "search", "seats", "reservations",
+            "reserve", "cancel", "waitlist", "withdraw", "hold", "confirm", "release", "save");
+
+    private final CustomerRegistration customerReg;
+    private final BusRegistration busReg;
+    private final ReservationSystem reservationSystem;
+    private final Map<String, Metrics.Histogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+
+    CommandDriver(CustomerRegistration customerReg, BusRegistration busReg, ReservationSystem reservationSystem) {
+        this.customerReg = customerReg;
+        this.busReg = busReg;
+        this.reservationSystem = reservationSystem;
+    }
+
+    // --script file|- [--quiet]: one result line per command, then the latency summary
+    public static boolean runScript(String[] args) throws Exception {
+        String source = args.length > 1 ? args[1] : "-";
+        boolean quiet = Arrays.asList(args).contains("--quiet");
+        PrintStream console = System.out;
+        PrintStream buffered = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_BYTES), false);
+        System.setOut(buffered);
+        try {
+            CustomerRegistration customerReg = new CustomerRegistration("customers.txt");
+            BusRegistration busReg = new BusRegistration("buses.txt");
+            ReservationSystem reservationSystem = new ReservationSystem("reservations.txt", customerReg,
+                    NotificationOutbox.fromSpec(System.getProperty("bus.notifications")));
+            customerReg.loadFromFile();
+            busReg.loadFromFile();
+            reservationSystem.loadFromFile();
+            CommandDriver driver = new CommandDriver(customerReg, busReg, reservationSystem);
+
+            long started = System.nanoTime();
+            try (BufferedReader reader = source.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(Paths.get(source))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    String output = driver.execute(line);
+                    if (output != null && !quiet) {
+                        buffered.println(output.startsWith("Error") ? "Error line " + lineNumber + output.substring(5) : output);
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+            reservationSystem.getOutbox().shutdown();
+            customerReg.saveToFile();
+            busReg.saveToFile();
+            reservationSystem.saveToFile();
+            driver.printSummary(buffered, elapsed);
+            return driver.errors.sum() == 0;
+        } finally {
+            buffered.flush();
+            System.setOut(console);
+        }
+    }
+
+    // Runs one command and returns its result line; null for a blank or comment line
+    String execute(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return null;
+        }
+        int space = line.indexOf(' ');
+        String verb = space < 0 ? line : line.substring(0, space);
+        if (!VERBS.contains(verb)) {
+            errors.increment();
+            return "Error: Unknown command: " + verb;
+        }
+        long started = System.nanoTime();
+        String output;
+        try {
+            List<String> arguments = new ArrayList<>();
+            if (space >= 0) {
+                DataFields fields = new DataFields(line.substring(space + 1));
+                while (fields.hasNext()) {
+                    arguments.add(fields.next().trim());
+                }
+            }
+            output = dispatch(verb, arguments.toArray(new String[0]));
+        } catch (RuntimeException e) {
+            errors.increment();
+            output = "Error: " + e.getMessage();
+        }
+        latencies.computeIfAbsent(verb, k -> new Metrics.Histogram()).record(System.nanoTime() - started);
+        return output;
+    }
+
+    private String dispatch(String verb, String[] fields) {
+        switch (verb) {
+            case "customer": {
+                Customer customer = customerReg.registerCustomer(new Customer(field(fields, 0), field(fields, 1),
+                        field(fields, 2), field(fields, 3), Integer.parseInt(field(fields, 4))));
+                return customer == null ? "DUPLICATE" : "REGISTERED " + customer.getId();
+            }
+            case "bus": {
+                Bus bus = fields.length > 6 && !fields[6].isEmpty()
+                        ? new Bus(field(fields, 0), Integer.parseInt(field(fields, 1)), field(fields, 2), field(fields, 3),
+                                field(fields, 4), Double.parseDouble(field(fields, 5)), fields[6])
+                        : new Bus(field(fields, 0), Integer.parseInt(field(fields, 1)), field(fields, 2), field(fields, 3),
+                                field(fields, 4), Double.parseDouble(field(fields, 5)));
+                return busReg.registerBus(bus) ? "REGISTERED " + bus.getBusNumber() : "DUPLICATE";
+            }
+            case "search":
+                return busReg.searchBuses(field(fields, 0), field(fields, 1)).size() + " buses";
+            case "seats": {
+                Bus bus = busReg.getBusByNumber(field(fields, 0));
+                if (bus == null) {
+                    return BookingResult.Status.NO_SUCH_BUS.toString();
+                }
+                LocalDate date = date(fields, 1);
+                return (date == null ? reservationSystem.getAvailableSeats(bus) : reservationSystem.getAvailableSeats(bus, date)) + " free";
+            }
+            case "reservations":
+                return reservationSystem.getReservations(trip(fields, 0)).size() + " reserved";
+            case "reserve":
+                return describe(reservationSystem.reserveSeat(customer(fields), trip(fields, 1), busReg));
+            case "cancel":
+                return describe(reservationSystem.cancelReservation(customer(fields), trip(fields, 1)));
+            case "waitlist":
+                return describe(reservationSystem.addCustomerToWaitingList(customer(fields), trip(fields, 1), busReg));
+            case "withdraw":
+                return describe(reservationSystem.withdrawFromWaitingList(customer(fields), trip(fields, 1)));
+            case "hold":
+                return describe(reservationSystem.holdSeat(customer(fields), trip(fields, 1), busReg));
+            case "confirm":
+                return describe(reservationSystem.confirmHold(Long.parseLong(field(fields, 0))));
+            case "release":
+                return describe(reservationSystem.releaseHold(Long.parseLong(field(fields, 0))));
+            case "save":
+                customerReg.saveToFile();
+                busReg.saveToFile();
+                reservationSystem.saveToFile();
+                return "SAVED";
+            default:
+                throw new IllegalStateException("No handler for command: " + verb);
+        }
+    }
+
+    private static String field(String[] fields, int index) {
+        if (index >= fields.length || fields[index].isEmpty()) {
+            throw new IllegalArgumentException("Missing argument " + (index + 1));
+        }
+        return fields[index];
+    }
+
+    private static LocalDate date(String[] fields, int index) {
+        return index < fields.length && !fields[index].isEmpty() ? LocalDate.parse(fields[index]) : null;
+    }
+
+    private static String trip(String[] fields, int index) {
+        LocalDate date = date(fields, index + 1);
+        return date == null ? field(fields, index) : ReservationSystem.tripKey(field(fields, index), date);
+    }
+
+    private Customer customer(String[] fields) {
+        Customer customer = customerReg.findCustomer(field(fields, 0));
+        if (customer == null) {
+            throw new IllegalArgumentException("Customer not found: " + fields[0]);
+        }
+        return customer;
+    }
+
+    private static String describe(BookingResult result) {
+        switch (result.getStatus()) {
+            case RESERVED:
+                return "RESERVED " + result.getSeat();
+            case HELD:
+                return "HELD " + result.getHoldId() + " " + result.getSeat();
+            case WAITLISTED:
+            case ALREADY_WAITLISTED:
+                return result.getStatus() + " " + result.getPosition();
+            case CANCELLED:
+                return "CANCELLED " + result.getSeats() + (result.getPromotedCustomers().isEmpty() ? "" : " promoted " + result.getPromotedCustomers().size());
+            default:
+                return result.getStatus().toString();
+        }
+    }
+
+    void printSummary(PrintStream out, long elapsedNanos) {
+        long total = 0;
+        for (Metrics.Histogram histogram : latencies.values()) {
+            total += histogram.getCount();
+        }
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        out.printf("%d commands in %d ms (%.0f ops/s), %d errors%n", total, elapsedNanos / 1_000_000, total / seconds, errors.sum());
+        out.printf("%-14s %10s %10s %10s %10s %10s%n", "command", "count", "mean us", "p50 us", "p99 us", "max us");
+        for (Map.Entry<String, Metrics.Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            out.printf("%-14s %10d %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(), histogram.getCount(), histogram.getMean() / 1000,
+                    histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0, histogram.getMax() / 1000.0);
+        }
+    }
+
+    // --loadgen [--buses N] [--customers N] [--seats N] [--ops N] [--threads N] [--skew S] [--reads F] [--days N]
+    // [--seed N] [--emit file]. Bus popularity follows a Zipf law with exponent --skew (0 is uniform), --reads is the
+    // fraction of read commands and --days spreads bookings over that many travel dates (0 books open tickets).
+    // With --emit the workload is written out as a --script file instead of being run.
+    public static boolean runLoad(String[] args) throws Exception {
+        int buses = 200;
+        int customers = 20_000;
+        int seats = 40;
+        int operations = 200_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double skew = 1.0;
+        double reads = 0.8;
+        int days = 0;
+        long seed = 42;
+        String emit = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--buses": buses = Integer.parseInt(args[++i]); break;
+                case "--customers": customers = Integer.parseInt(args[++i]); break;
+                case "--seats": seats = Integer.parseInt(args[++i]); break;
+                case "--ops": operations = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--skew": skew = Double.parseDouble(args[++i]); break;
+                case "--reads": reads = Double.parseDouble(args[++i]); break;
+                case "--days": days = Integer.parseInt(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--emit": emit = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown load option: " + args[i]);
+            }
+        }
+        if (reads < 0 || reads > 1) {
+            throw new IllegalArgumentException("--reads must be between 0 and 1");
+        }
+
+        List<String> setup = new ArrayList<>(buses + customers);
+        for (int i = 0; i < buses; i++) {
+            setup.add("bus L" + i + "," + seats + ",Stop" + (i % 20) + ",Stop" + ((i + 1) % 20) + "," + String.format("%02d:%02d", 6 + i % 16, i % 60) + "," + (10 + i % 50));
+        }
+        for (int i = 0; i < customers; i++) {
+            setup.add("customer load" + i + ",7" + String.format("%09d", i) + ",load" + i + "@example.com,City,30");
+        }
+        List<List<String>> work = generate(buses, customers, operations, threads, skew, reads, days, new Random(seed));
+
+        if (emit != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(emit))) {
+                for (String command : setup) {
+                    writer.write(command);
+                    writer.newLine();
+                }
+                for (List<String> commands : work) {
+                    for (String command : commands) {
+                        writer.write(command);
+                        writer.newLine();
+                    }
+                }
+            }
+            System.out.println("Wrote " + (setup.size() + operations) + " commands to " + emit);
+            return true;
+        }
+
+        Path directory = Files.createTempDirectory("bus-load");
+        CustomerRegistration customerReg = new CustomerRegistration(directory.resolve("customers.txt").toString());
+        BusRegistration busReg = new BusRegistration(directory.resolve("buses.txt").toString());
+        ReservationSystem reservationSystem = new ReservationSystem(directory.resolve("reservations.txt").toString(), customerReg,
+                new NotificationOutbox(List.of(new StubNotificationSink()), NotificationOutbox.DEFAULT_CAPACITY, 1024, 0));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        CommandDriver driver = new CommandDriver(customerReg, busReg, reservationSystem);
+        long elapsed;
+        try {
+            for (String command : setup) {
+                driver.execute(command);
+            }
+            driver.latencies.clear();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<String> commands : work) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (String command : commands) {
+                        driver.execute(command);
+                    }
+                    return null;
+                }));
+            }
+            long started = System.nanoTime();
+            start.countDown();
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            elapsed = System.nanoTime() - started;
+            reservationSystem.getOutbox().shutdown();
+        } finally {
+            System.setOut(console);
+        }
+        System.out.printf("%d buses, %d customers, %d threads, skew %.2f, %.0f%% reads%n", buses, customers, threads, skew, reads * 100);
+        driver.printSummary(System.out, elapsed);
+        return driver.errors.sum() == 0;
+    }
+
+    // Reads are split between seat counts, route searches and reservation lists; writes are 70% reserve, 30% cancel
+    private static List<List<String>> generate(int buses, int customers, int operations, int threads, double skew,
+                                               double reads, int days, Random random) {
+        double[] cumulative = new double[buses];
+        double total = 0;
+        for (int i = 0; i < buses; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        LocalDate today = LocalDate.now();
+        List<List<String>> work = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            work.add(new ArrayList<>(operations / threads + 1));
+        }
+        for (int i = 0; i < operations; i++) {
+            int bus = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            bus = bus < 0 ? Math.min(-bus - 1, buses - 1) : bus;
+            String trip = "L" + bus + (days > 0 ? "," + today.plusDays(random.nextInt(days)) : "");
+            String customer = "7" + String.format("%09d", random.nextInt(customers));
+            String command;
+            if (random.nextDouble() < reads) {
+                double kind = random.nextDouble();
+                if (kind < 0.5) {
+                    command = "seats " + trip;
+                } else if (kind < 0.75) {
+                    command = "search Stop" + (bus % 20) + ",Stop" + ((bus + 1) % 20);
+                } else {
+                    command = "reservations " + trip;
+                }
+            } else {
+                command = (random.nextDouble() < 0.7 ? "reserve " : "cancel ") + customer + "," + trip;
+            }
+            work.get(i % threads).add(command);
+        }
+        return work;
+    }
+}
+
+// Json class
+// Just enough JSON for the booking API: flat request objects in, objects and arrays out.
+class Json {
+    public static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static String customer(Customer customer) {
+        return "{\"id\":" + customer.getId() +
+               ",\"name\":" + quote(customer.getName()) +
+               ",\"mobileNumber\":" + quote(customer.getMobileNumber()) +
+               ",\"email\":" + quote(customer.getEmail()) +
+               ",\"city\":" + quote(customer.getCity()) +
+               ",\"age\":" + customer.getAge() + "}";
+    }
+
+    public static String bus(Bus bus) {
+        return "{\"busNumber\":" + quote(bus.getBusNumber()) +
+               ",\"totalSeats\":" + bus.getTotalSeats() +
+               ",\"startPoint\":" + quote(bus.getStartPoint()) +
+               ",\"endPoint\":" + quote(bus.getEndPoint()) +
+               ",\"startTime\":" + quote(bus.getStartTime()) +
+               ",\"arrivalTime\":" + quote(bus.getArrivalTimeText()) +
+               ",\"fare\":" + bus.getFare() + "}";
+    }
+
+    public static String journey(JourneyPlanner.Journey journey) {
+        StringJoiner legs = new StringJoiner(",", "[", "]");
+        for (JourneyPlanner.Leg leg : journey.getLegs()) {
+            legs.add("{\"bus\":" + bus(leg.bus) +
+                     ",\"departure\":" + quote(JourneyPlanner.clock(leg.departure)) +
+                     ",\"arrival\":" + quote(JourneyPlanner.clock(leg.arrival)) + "}");
+        }
+        return "{\"departure\":" + quote(JourneyPlanner.clock(journey.getDeparture())) +
+               ",\"arrival\":" + quote(JourneyPlanner.clock(journey.getArrival())) +
+               ",\"totalFare\":" + journey.getTotalFare() +
+               ",\"transfers\":" + journey.getTransfers() +
+               ",\"legs\":" + legs + "}";
+    }
+
+    public static String routeStats(OccupancyAnalytics.Stats stats) {
+        return "{\"route\":" + quote(stats.getName()) +
+               ",\"trips\":" + stats.getTrips() +
+               ",\"seatsOffered\":" + stats.getSeatsOffered() +
+               ",\"seatsSold\":" + stats.getSeatsSold() +
+               ",\"waiting\":" + stats.getWaiting() +
+               ",\"revenue\":" + stats.getRevenue() +
+               ",\"loadFactor\":" + stats.getLoadFactor() + "}";
+    }
+
+    public static <T> String array(Collection<T> items, Function<T, String> toJson) {
+        StringJoiner joiner = new StringJoiner(",", "[", "]");
+        for (T item : items) {
+            joiner.add(toJson.apply(item));
+        }
+        return joiner.toString();
+    }
+
+    // A flat object of string values, which parseObject reads back unchanged
+    public static String object(Map<String, String> fields) {
+        StringJoiner joiner = new StringJoiner(",", "{", "}");
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            joiner.add(quote(entry.getKey()) + ":" + quote(entry.getValue()));
+        }
+        return joiner.toString();
+    }
+
+    // Parses a flat object; nested values are rejected and every scalar comes back as its text
+    public static Map<String, String> parseObject(String text) {
+        Map<String, String> fields = new HashMap<>();
+        int[] position = {skipWhitespace(text, 0)};
+        expect(text, position, '{');
+        position[0] = skipWhitespace(text, position[0]);
+        if (position[0] < text.length() && text.charAt(position[0]) == '}') {
+            return fields;
+        }
+        while (true) {
+            position[0] = skipWhitespace(text, position[0]);
+            String key = parseString(text, position);
+            position[0] = skipWhitespace(text, position[0]);
+            expect(text, position, ':');
+            position[0] = skipWhitespace(text, position[0]);
+            fields.put(key, parseScalar(text, position));
+            position[0] = skipWhitespace(text, position[0]);
+            if (position[0] < text.length() && text.charAt(position[0]) == ',') {
+                position[0]++;
+                continue;
+            }
+            expect(text, position, '}');
+            return fields;
+        }
+    }
+
+    // Top-level members of an object, each value left as its raw JSON text
+    public static Map<String, String> members(String text) {
+        Map<String, String> members = new LinkedHashMap<>();
+        int[] position = {skipWhitespace(text, 0)};
+        expect(text, position, '{');
+        position[0] = skipWhitespace(text, position[0]);
+        if (position[0] < text.length() && text.charAt(position[0]) == '}') {
+            return members;
+        }
+        while (true) {
+            position[0] = skipWhitespace(text, position[0]);
+            String key = parseString(text, position);
+            position[0] = skipWhitespace(text, position[0]);
+            expect(text, position, ':');
+            position[0] = skipWhitespace(text, position[0]);
+            int start = position[0];
+            skipValue(text, position);
+            members.put(key, text.substring(start, position[0]));
+            position[0] = skipWhitespace(text, position[0]);
+            if (position[0] < text.length() && text.charAt(position[0]) == ',') {
+                position[0]++;
+                continue;
+            }
+            expect(text, position, '}');
+            return members;
+        }
+    }
+
+    // The raw JSON text of each element of an array
+    public static List<String> elements(String text) {
+        List<String> elements = new ArrayList<>();
+        int[] position = {skipWhitespace(text, 0)};
+        expect(text, position, '[');
+        position[0] = skipWhitespace(text, position[0]);
+        if (position[0] < text.length() && text.charAt(position[0]) == ']') {
+            return elements;
+        }
+        while (true) {
+            position[0] = skipWhitespace(text, position[0]);
+            int start = position[0];
+            skipValue(text, position);
+            elements.add(text.substring(start, position[0]));
+            position[0] = skipWhitespace(text, position[0]);
+            if (position[0] < text.length() && text.charAt(position[0]) == ',') {
+                position[0]++;
+                continue;
+            }
+            expect(text, position, ']');
+            return elements;
+        }
+    }
+
+    private static void skipValue(String text, int[] position) {
+        if (position[0] < text.length() && (text.charAt(position[0]) == '{' || text.charAt(position[0]) == '[')) {
+            int depth = 0;
+            while (position[0] < text.length()) {
+                char c = text.charAt(position[0]);
+                if (c == '"') {
+                    parseString(text, position);
+                    continue;
+                }
+                position[0]++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        if (position[0] < text.length() && text.charAt(position[0]) == '"') {
+            parseString(text, position);
+            return;
+        }
+        while (position[0] < text.length() && ",}] \t\r\n".indexOf(text.charAt(position[0])) < 0) {
+            position[0]++;
+        }
+    }
+
+    private static String parseScalar(String text, int[] position) {
+        if (position[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        char c = text.charAt(position[0]);
+        if (c == '"') {
+            return parseString(text, position);
+        }
+        if (c == '{' || c == '[') {
+            throw new IllegalArgumentException("Nested JSON values are not supported");
+        }
+        int start = position[0];
+        while (position[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(position[0])) < 0) {
+            position[0]++;
+        }
+        String literal = text.substring(start, position[0]);
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static String parseString(String text, int[] position) {
+        expect(text, position, '"');
+        StringBuilder sb = new StringBuilder();
+        while (position[0] < text.length()) {
+            char c = text.charAt(position[0]++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (position[0] >= text.length()) break;
+            char escaped = text.charAt(position[0]++);
+            switch (escaped) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (position[0] + 4 > text.length()) {
+                        throw new IllegalArgumentException("Invalid unicode escape in JSON");
+                    }
+                    sb.append((char) Integer.parseInt(text.substring(position[0], position[0] + 4), 16));
+                    position[0] += 4;
+                    break;
+                default: sb.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string in JSON");
+    }
+
+    private static void expect(String text, int[] position, char expected) {
+        if (position[0] >= text.length() || text.charAt(position[0]) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at position " + position[0]);
+        }
+        position[0]++;
+    }
+
+    private static int skipWhitespace(String text, int position) {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
+
+// BookingHttpServer class
+// Headless booking API on the JDK's built-in HTTP server. Each request runs on its own virtual thread
+// when the runtime supports them (Java 21+), otherwise on a bounded pool.
+class BookingHttpServer {
+    // -Dbus.http.threads and -Dbus.http.queue size the request pool where virtual threads are unavailable
+    private static final int REQUEST_THREADS = Integer.getInteger("bus.http.threads", 64);
+    private static final int REQUEST_QUEUE = Integer.getInteger("bus.http.queue", 1024);
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final CustomerRegistration customerReg;
+    private final BusRegistration busReg;
+    private final ReservationSystem reservationSystem;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public BookingHttpServer(CustomerRegistration customerReg, BusRegistration busReg, ReservationSystem reservationSystem) {
+        this.customerReg = customerReg;
+        this.busReg = busReg;
+        this.reservationSystem = reservationSystem;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/customers", exchange -> handle(exchange, only(this::customers, "/customers")));
+        server.createContext("/buses", exchange -> handle(exchange, this::buses));
+        server.createContext("/reservations", exchange -> handle(exchange, only(this::reservations, BOOKING_PATHS)));
+        server.createContext("/waitlist", exchange -> handle(exchange, only(this::waitlist, BOOKING_PATHS)));
+        server.createContext("/holds", exchange -> handle(exchange, only(this::holds, BOOKING_PATHS)));
+        server.createContext("/journeys", exchange -> handle(exchange, only(this::journeys, "/journeys")));
+        server.createContext("/notifications", exchange -> handle(exchange, only(this::notifications, "/notifications")));
+        server.createContext("/reports", exchange -> handle(exchange, only(this::reports, "/reports")));
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    // Once the pool and its queue are full, the server's accept thread runs the request itself, which stops
+    // it accepting more until one finishes
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threads = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(REQUEST_QUEUE), runnable -> {
+                        Thread thread = new Thread(runnable, "http-request-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    interface Route {
+        Response serve(String method, String path, Map<String, String> query, Map<String, String> body);
+    }
+
+    // Every path the booking routes serve; the cluster router forwards exactly these
+    static final Set<String> BOOKING_PATHS = Set.of("/reservations", "/reservations/cancel", "/reservations/group",
+            "/waitlist", "/waitlist/position", "/waitlist/withdraw", "/holds", "/holds/confirm", "/holds/release");
+
+    // HttpServer matches a context by prefix, so a route turns away any other path under it rather than, say,
+    // booking a seat for POST /reservations/typo
+    private static Route only(Route route, String... paths) {
+        return only(route, Set.of(paths));
+    }
+
+    private static Route only(Route route, Set<String> paths) {
+        return (method, path, query, body) -> paths.contains(path)
+                ? route.serve(method, path, query, body)
+                : error(404, "No such resource: " + path);
+    }
+
+    private void handle(HttpExchange exchange, Route route) throws IOException {
+        Response response;
+        try {
+            String method = exchange.getRequestMethod();
+            Map<String, String> body = Collections.emptyMap();
+            if (method.equals("POST")) {
+                String text = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                body = text.isBlank() ? Collections.emptyMap() : Json.parseObject(text);
+            }
+            response = route.serve(method, exchange.getRequestURI().getPath(), parseQuery(exchange.getRequestURI().getRawQuery()), body);
+        } catch (IllegalArgumentException e) {
+            response = error(400, e.getMessage());
+        } catch (RuntimeException e) {
+            response = error(500, String.valueOf(e));
+        }
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // GET /customers[?limit=&before=] newest first, GET /customers?id=, ?mobile=, ?email= or ?find= (mobile, email
+    // or name), POST /customers {[id, ]name, mobileNumber, email, city, age}; an ID is only given by the cluster router
+    private Response customers(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (method.equals("GET")) {
+            if (query.containsKey("id") || query.containsKey("mobile") || query.containsKey("email") || query.containsKey("find")) {
+                Customer customer;
+                if (query.containsKey("id")) {
+                    customer = customerReg.getCustomerById(parseInt(query.get("id"), "id"));
+                } else if (query.containsKey("mobile")) {
+                    customer = customerReg.getCustomerByMobile(query.get("mobile"));
+                } else if (query.containsKey("email")) {
+                    customer = customerReg.getCustomerByEmail(query.get("email"));
+                } else {
+                    customer = customerReg.findCustomer(query.get("find"));
+                }
+                return customer == null ? error(404, "Customer not found.") : new Response(200, Json.customer(customer));
+            }
+            int limit = parseInt(query.getOrDefault("limit", String.valueOf(DEFAULT_PAGE_SIZE)), "limit");
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+            List<Customer> page = customerReg.getCustomerPage(parseInt(query.getOrDefault("before", "0"), "before"), limit);
+            String nextCursor = page.size() < limit ? "null" : String.valueOf(page.get(page.size() - 1).getId());
+            return new Response(200, "{\"customers\":" + Json.array(page, Json::customer) + ",\"nextCursor\":" + nextCursor + "}");
+        }
+        if (!method.equals("POST")) {
+            return methodNotAllowed();
+        }
+        Customer customer = new Customer(required(body, "name"), required(body, "mobileNumber"),
+                required(body, "email"), required(body, "city"), parseInt(required(body, "age"), "age"));
+        if (body.containsKey("id")) {
+            int id = parseInt(body.get("id"), "id");
+            if (id <= 0) {
+                throw new IllegalArgumentException("id must be positive");
+            }
+            Customer withId = customer.withId(id);
+            Customer registered = customerReg.registerCustomerWithId(withId);
+            if (registered == null) {
+                return error(409, "Another customer has this ID, mobile number or email.");
+            }
+            // 200 when the same customer was already stored, as on a retried copy
+            return new Response(registered == withId ? 201 : 200, Json.customer(registered));
+        }
+        if (!customerReg.assignsIds()) {
+            throw new IllegalArgumentException("id is required: this is a cluster worker, and customers are registered through the cluster router");
+        }
+        Customer registered = customerReg.registerCustomer(customer);
+        if (registered == null) {
+            return error(409, "A customer with this mobile number or email is already registered.");
+        }
+        return new Response(201, Json.customer(registered));
+    }
+
+    // GET /buses, GET /buses/search?from=&to=[&departFrom=&departUntil=], GET /buses/{number},
+    // POST /buses {busNumber, totalSeats, startPoint, endPoint, startTime, fare[, arrivalTime]}
+    private Response buses(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (method.equals("POST")) {
+            Bus bus = new Bus(required(body, "busNumber"), parseInt(required(body, "totalSeats"), "totalSeats"),
+                    required(body, "startPoint"), required(body, "endPoint"), required(body, "startTime"),
+                    parseDouble(required(body, "fare"), "fare"), body.get("arrivalTime"));
+            if (!busReg.registerBus(bus)) {
+                return error(409, "Bus with number " + bus.getBusNumber() + " is already registered.");
+            }
+            return new Response(201, Json.bus(bus));
+        }
+        if (!method.equals("GET")) {
+            return methodNotAllowed();
+        }
+        if (path.equals("/buses") || path.equals("/buses/")) {
+            return new Response(200, Json.array(busReg.getAllBuses(), Json::bus));
+        }
+        if (path.equals("/buses/search")) {
+            String from = required(query, "from");
+            String to = required(query, "to");
+            List<Bus> buses;
+            if (query.containsKey("departFrom") || query.containsKey("departUntil")) {
+                buses = busReg.searchBuses(from, to, parseTime(query.getOrDefault("departFrom", "00:00")),
+                        parseTime(query.getOrDefault("departUntil", "23:59")));
+            } else {
+                buses = busReg.searchBuses(from, to);
+            }
+            return new Response(200, Json.array(buses, Json::bus));
+        }
+        Bus bus = busReg.getBusByNumber(decode(path.substring("/buses/".length())));
+        return bus == null ? error(404, "No bus registered with: " + path.substring("/buses/".length())) : new Response(200, Json.bus(bus));
+    }
+
+    // GET /reservations?bus=[&date=], POST /reservations {customer, busNumber[, date]}, POST /reservations/cancel
+    // {customer, busNumber[, date]}, POST /reservations/group {customerIds: "1,2,3", busNumber[, date, adjacent, waitlist, tier]}
+    private Response reservations(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (method.equals("GET")) {
+            StringJoiner seats = new StringJoiner(",", "[", "]");
+            for (Map.Entry<Integer, Customer> entry : reservationSystem.getReservations(trip(query, "bus")).entrySet()) {
+                seats.add("{\"seat\":" + entry.getKey() + ",\"customer\":" + Json.customer(entry.getValue()) + "}");
+            }
+            return new Response(200, seats.toString());
+        }
+        if (!method.equals("POST")) {
+            return methodNotAllowed();
+        }
+        if (path.equals("/reservations/group")) {
+            List<Customer> customers = new ArrayList<>();
+            for (String id : required(body, "customerIds").split(",")) {
+                Customer customer = customerReg.getCustomerById(parseInt(id.trim(), "customerIds"));
+                if (customer == null) {
+                    return error(404, "Customer not found: " + id.trim());
+                }
+                customers.add(customer);
+            }
+            return bookingResponse(reservationSystem.reserveGroup(customers, trip(body, "busNumber"), busReg,
+                    Boolean.parseBoolean(body.get("adjacent")), Boolean.parseBoolean(body.get("waitlist")),
+                    parseInt(body.getOrDefault("tier", String.valueOf(WaitingList.STANDARD_TIER)), "tier")));
+        }
+        Customer customer = customerFor(body);
+        if (customer == null) {
+            return error(404, "Customer not found.");
+        }
+        String busNumber = trip(body, "busNumber");
+        BookingResult result = path.equals("/reservations/cancel")
+                ? reservationSystem.cancelReservation(customer, busNumber)
+                : reservationSystem.reserveSeat(customer, busNumber, busReg);
+        return bookingResponse(result);
+    }
+
+    // GET /waitlist?bus=[&date=], GET /waitlist/position?bus=&customer=[&date=], POST /waitlist {customer, busNumber[, date, tier]},
+    // POST /waitlist/withdraw {customer, busNumber[, date]}
+    private Response waitlist(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (method.equals("GET") && path.equals("/waitlist/position")) {
+            Customer customer = customerFor(query);
+            if (customer == null) {
+                return error(404, "Customer not found.");
+            }
+            int position = reservationSystem.getWaitingPosition(customer, trip(query, "bus"));
+            return position == 0 ? error(404, "Customer is not on the waiting list.") : new Response(200, "{\"position\":" + position + "}");
+        }
+        if (method.equals("GET")) {
+            return new Response(200, Json.array(reservationSystem.getWaitingList(trip(query, "bus")), Json::customer));
+        }
+        if (!method.equals("POST")) {
+            return methodNotAllowed();
+        }
+        Customer customer = customerFor(body);
+        if (customer == null) {
+            return error(404, "Customer not found.");
+        }
+        String busNumber = trip(body, "busNumber");
+        if (path.equals("/waitlist/withdraw")) {
+            return bookingResponse(reservationSystem.withdrawFromWaitingList(customer, busNumber));
+        }
+        if (!reservationSystem.isCustomerReserved(customer, busNumber)) {
+            return error(409, "You do not have a reservation for this bus.");
+        }
+        int tier = parseInt(body.getOrDefault("tier", String.valueOf(WaitingList.STANDARD_TIER)), "tier");
+        return bookingResponse(reservationSystem.addCustomerToWaitingList(customer, busNumber, busReg, tier));
+    }
+
+    // POST /holds {customer, busNumber[, date, ttlSeconds]}, POST /holds/confirm {holdId}, POST /holds/release {holdId}
+    private Response holds(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (!method.equals("POST")) {
+            return methodNotAllowed();
+        }
+        if (path.equals("/holds/confirm") || path.equals("/holds/release")) {
+            long holdId;
+            try {
+                holdId = Long.parseLong(required(body, "holdId"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for holdId: " + body.get("holdId"));
+            }
+            return bookingResponse(path.equals("/holds/confirm") ? reservationSystem.confirmHold(holdId) : reservationSystem.releaseHold(holdId));
+        }
+        Customer customer = customerFor(body);
+        if (customer == null) {
+            return error(404, "Customer not found.");
+        }
+        int ttl = parseInt(body.getOrDefault("ttlSeconds", String.valueOf(ReservationSystem.DEFAULT_HOLD_TTL_SECONDS)), "ttlSeconds");
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttlSeconds must be positive");
+        }
+        return bookingResponse(reservationSystem.holdSeat(customer, trip(body, "busNumber"), busReg, ttl, TimeUnit.SECONDS));
+    }
+
+    // GET /journeys?from=&to=[&date=&after=&k=&sort=arrival|fare&minTransfer=]; every leg is checked for seats on the same date
+    private Response journeys(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (!method.equals("GET")) {
+            return methodNotAllowed();
+        }
+        String sort = query.getOrDefault("sort", "arrival");
+        if (!sort.equals("arrival") && !sort.equals("fare")) {
+            throw new IllegalArgumentException("sort must be arrival or fare");
+        }
+        LocalDate date = query.containsKey("date") ? parseDate(query.get("date")) : null;
+        List<JourneyPlanner.Journey> journeys = busReg.planJourneys(required(query, "from"), required(query, "to"),
+                parseTime(query.getOrDefault("after", "00:00")), parseInt(query.getOrDefault("k", "3"), "k"),
+                sort.equals("fare") ? JourneyPlanner.Order.FARE : JourneyPlanner.Order.ARRIVAL,
+                parseInt(query.getOrDefault("minTransfer", "10"), "minTransfer"),
+                date == null ? reservationSystem::hasFreeSeat : bus -> reservationSystem.hasFreeSeat(bus, date));
+        return new Response(200, Json.array(journeys, Json::journey));
+    }
+
+    // GET /notifications: outbox delivery counters
+    private Response notifications(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (!method.equals("GET")) {
+            return methodNotAllowed();
+        }
+        StringJoiner counters = new StringJoiner(",", "{", "}");
+        for (Map.Entry<String, Long> entry : reservationSystem.getOutbox().getCounters().entrySet()) {
+            counters.add(Json.quote(entry.getKey()) + ":" + entry.getValue());
+        }
+        return new Response(200, counters.toString());
+    }
+
+    // GET /reports[?k=]: the k busiest routes, the load-factor histogram and revenue by route, from running totals
+    private Response reports(String method, String path, Map<String, String> query, Map<String, String> body) {
+        if (!method.equals("GET")) {
+            return methodNotAllowed();
+        }
+        OccupancyAnalytics analytics = reservationSystem.getAnalytics();
+        if (analytics == null) {
+            return error(404, "Analytics are not enabled");
+        }
+        StringJoiner revenue = new StringJoiner(",", "{", "}");
+        for (Map.Entry<String, Double> entry : analytics.revenueByRoute().entrySet()) {
+            revenue.add(Json.quote(entry.getKey()) + ":" + entry.getValue());
+        }
+        return new Response(200, "{\"topRoutes\":" + Json.array(analytics.topRoutes(parseInt(query.getOrDefault("k", "10"), "k")), Json::routeStats) +
+                ",\"loadFactorHistogram\":" + Arrays.toString(analytics.loadFactorHistogram()).replace(" ", "") +
+                ",\"revenueByRoute\":" + revenue + "}");
+    }
+
+    // "customerId", or "customer" as a mobile number, email or name
+    private Customer customerFor(Map<String, String> body) {
+        if (body.containsKey("customerId")) {
+            return customerReg.getCustomerById(parseInt(body.get("customerId"), "customerId"));
+        }
+        return customerReg.findCustomer(required(body, "customer"));
+    }
+
+    private static Response bookingResponse(BookingResult result) {
+        int status;
+        switch (result.getStatus()) {
+            case NO_SUCH_BUS:
+            case NOT_RESERVED:
+            case NOT_WAITLISTED:
+            case NO_SUCH_HOLD:
+                status = 404;
+                break;
+            case SEATS_AVAILABLE:
+            case NOT_ENOUGH_SEATS:
+                status = 409;
+                break;
+            default:
+                status = 200;
+        }
+        StringBuilder json = new StringBuilder("{\"status\":").append(Json.quote(result.getStatus().name()));
+        if (result.getSeat() > 0) {
+            json.append(",\"seat\":").append(result.getSeat());
+        }
+        if (result.getSeats().size() > 1) {
+            json.append(",\"seats\":").append(result.getSeats().toString().replace(" ", ""));
+        }
+        if (result.getPosition() > 0) {
+            json.append(",\"position\":").append(result.getPosition());
+        }
+        if (result.getHoldId() > 0) {
+            json.append(",\"holdId\":").append(result.getHoldId());
+        }
+        if (result.getPromotedCustomer() != null) {
+            json.append(",\"promoted\":").append(Json.customer(result.getPromotedCustomer()));
+        }
+        return new Response(status, json.append('}').toString());
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, "{\"error\":" + Json.quote(message) + "}");
+    }
+
+    private static Response methodNotAllowed() {
+        return error(405, "Method not allowed");
+    }
+
+    static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Missing field: " + name);
+        }
+        return value;
+    }
+
+    // The bus number, or its trip key when a travel date is given
+    private static String trip(Map<String, String> fields, String busField) {
+        String busNumber = required(fields, busField);
+        String date = fields.get("date");
+        return date == null || date.isBlank() ? busNumber : ReservationSystem.tripKey(busNumber, parseDate(date));
+    }
+
+    private static LocalDate parseDate(String value) {
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date, expected yyyy-MM-dd: " + value);
+        }
+    }
+
+    static int parseInt(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+    }
+
+    private static double parseDouble(String value, String name) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+    }
+
+    static LocalTime parseTime(String value) {
+        LocalTime time = Bus.parseTime(value);
+        if (time == null) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+        return time;
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                query.put(decode(pair), "");
+            } else {
+                query.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+            }
+        }
+        return query;
+    }
+
+    static String decode(String text) {
+        return URLDecoder.decode(text, StandardCharsets.UTF_8);
+    }
+}
+
+// ClusterRouter class
+// Cluster mode: buses are hash-partitioned by bus number across worker processes, each an ordinary --server
+// with its own data files under -Dbus.cluster.dir (default "cluster"), and this router forwards every booking
+// to the worker that owns the bus. Customers are partitioned by ID: the router hands out IDs and stores each
+// customer on worker ID mod workers, and a booking first copies the customer to the bus's worker under the same
+// ID. Copies are idempotent, so a failed one is simply repeated. Each worker directory carries a marker that makes
+// the worker refuse registrations without an ID. Customer lookups, bus listings, searches and reports fan out and
+// are merged.
+// Run with: java BusReservationDSA --cluster [workers] [port]; worker i listens on port + 1 + i
+class ClusterRouter {
+    private static final Pattern HOLD_ID = Pattern.compile("\"holdId\":(\\d+)");
+
+    private final List<URI> workers;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    // Registrations sharing a mobile number or email stripe are serialised, so two cannot both pass the duplicate check
+    private final Object[] registrationLocks = new Object[64];
+    private final AtomicInteger lastCustomerId = new AtomicInteger();
+    // worker + ID * workers for each customer known to be on a worker that does not own it
+    private final Set<Long> copiedCustomers = ConcurrentHashMap.newKeySet();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private static class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    public ClusterRouter(List<URI> workers) {
+        this.workers = workers;
+        for (int i = 0; i < registrationLocks.length; i++) {
+            registrationLocks[i] = new Object();
+        }
+    }
+
+    // String.hashCode is specified, so every process agrees on the owner
+    public static int owner(String busNumber, int workers) {
+        return Math.floorMod(busNumber.hashCode(), workers);
+    }
+
+    public static void run(String[] args) throws Exception {
+        int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 8080;
+        Path directory = Paths.get(System.getProperty("bus.cluster.dir", "cluster"));
+        Files.createDirectories(directory);
+        // Buses stay where they were first placed, so the partition count is fixed once the cluster has data
+        Path layout = directory.resolve("workers");
+        if (Files.exists(layout)) {
+            int created = Integer.parseInt(Files.readString(layout).trim());
+            if (created != workerCount) {
+                System.out.println("Error: " + directory + " was created with " + created + " workers, not " + workerCount);
+                System.exit(1);
+            }
+        } else {
+            Files.writeString(layout, workerCount + System.lineSeparator());
+        }
+
+        List<Process> processes = new ArrayList<>();
+        List<URI> workers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stopWorkers(processes)));
+        for (int i = 0; i < workerCount; i++) {
+            Path workerDirectory = Files.createDirectories(directory.resolve("worker-" + i));
+            Files.writeString(workerDirectory.resolve(CustomerRegistration.WORKER_MARKER), "worker " + i + " of " + workerCount + System.lineSeparator());
+            processes.add(startWorker(workerDirectory, port + 1 + i));
+            workers.add(URI.create("http://localhost:" + (port + 1 + i)));
+        }
+        ClusterRouter router = new ClusterRouter(workers);
+        for (int i = 0; i < workerCount; i++) {
+            router.awaitWorker(i, processes.get(i));
+        }
+        router.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(router::stop));
+        System.out.println("Cluster router listening on port " + router.getPort() + " with " + workerCount + " workers");
+        new CountDownLatch(1).await();
+    }
+
+    // This JVM's java launcher and class path, made absolute so the child may run in another directory
+    static List<String> javaCommand(List<String> options) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        command.add("-cp");
+        command.add(classPath.toString());
+        return command;
+    }
+
+    // The worker runs this same program with this JVM's classpath and -Dbus.* settings, logging to its directory
+    private static Process startWorker(Path directory, int port) throws IOException {
+        List<String> options = new ArrayList<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("bus.") && !name.startsWith("bus.cluster.")) {
+                options.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        List<String> command = javaCommand(options);
+        command.add("BusReservationDSA");
+        command.add("--server");
+        command.add(String.valueOf(port));
+        return new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve("worker.log").toFile()))
+                .start();
+    }
+
+    private void awaitWorker(int worker, Process process) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Worker " + worker + " exited with status " + process.exitValue());
+            }
+            try {
+                if (forward(worker, "GET", "/notifications", "").status == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IOException("Worker " + worker + " did not start within 60 seconds");
+    }
+
+    // SIGTERM, so each worker's shutdown hook saves its partition
+    private static void stopWorkers(List<Process> processes) {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // Each worker lists its newest customer first; IDs carry on above the highest, so none is ever reused
+    public void start(int port) throws IOException {
+        for (Reply reply : ask("GET", "/customers?limit=1")) {
+            if (reply.status != 200) {
+                throw new IOException("Error reading customers from a worker: " + reply.body);
+            }
+            for (String element : Json.elements(Json.members(reply.body).get("customers"))) {
+                lastCustomerId.accumulateAndGet(Integer.parseInt(Json.parseObject(element).get("id")), Math::max);
+            }
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        executor = BookingHttpServer.newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Reply reply;
+        try {
+            String method = exchange.getRequestMethod();
+            String body = method.equals("POST") ? new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8) : "";
+            reply = route(method, exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery(), body);
+        } catch (IllegalArgumentException e) {
+            reply = error(400, e.getMessage());
+        } catch (IOException e) {
+            reply = error(502, "Worker unavailable: " + e.getMessage());
+        } catch (RuntimeException e) {
+            reply = error(500, String.valueOf(e));
+        }
+        byte[] bytes = reply.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(reply.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Reply route(String method, String path, String rawQuery, String body) throws IOException {
+        String target = rawQuery == null ? path : path + "?" + rawQuery;
+        Map<String, String> query = BookingHttpServer.parseQuery(rawQuery);
+        Map<String, String> fields = body.isBlank() ? Map.of() : Json.parseObject(body);
+        if (path.startsWith("/customers")) {
+            if (method.equals("POST")) {
+                return register(fields);
+            }
+            if (query.containsKey("id")) {
+                return forward(customerOwner(BookingHttpServer.parseInt(query.get("id"), "id")), method, target, body);
+            }
+            String field = query.containsKey("mobile") ? "mobile" : query.containsKey("email") ? "email" : "find";
+            if (query.containsKey(field)) {
+                Customer customer = findCustomer(field, query.get(field));
+                return customer == null ? error(404, "Customer not found.") : new Reply(200, Json.customer(customer));
+            }
+            return customerPage(query);
+        }
+        if (path.equals("/buses") || path.equals("/buses/")) {
+            if (method.equals("POST")) {
+                return forward(owner(BookingHttpServer.required(fields, "busNumber")), method, target, body);
+            }
+            return fanOut(method, target, replies -> new Reply(200, concatenate(replies)));
+        }
+        if (path.equals("/buses/search")) {
+            return fanOut(method, target, replies -> new Reply(200, mergeSearch(query, replies)));
+        }
+        if (path.startsWith("/buses/")) {
+            return forward(owner(BookingHttpServer.decode(path.substring("/buses/".length()))), method, target, body);
+        }
+        if (path.equals("/holds/confirm") || path.equals("/holds/release")) {
+            long holdId;
+            try {
+                holdId = Long.parseLong(BookingHttpServer.required(fields, "holdId"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for holdId: " + fields.get("holdId"));
+            }
+            int worker = (int) Math.floorMod(holdId, (long) workers.size());
+            return forward(worker, method, target, "{\"holdId\":" + Math.floorDiv(holdId, workers.size()) + "}");
+        }
+        if (BookingHttpServer.BOOKING_PATHS.contains(path)) {
+            String busNumber = method.equals("GET") ? BookingHttpServer.required(query, "bus") : BookingHttpServer.required(fields, "busNumber");
+            int worker = owner(busNumber);
+            Map<String, String> named = method.equals("GET") ? query : fields;
+            Reply copied = null;
+            if (path.equals("/reservations/group")) {
+                String[] ids = BookingHttpServer.required(fields, "customerIds").split(",");
+                for (int i = 0; i < ids.length && copied == null; i++) {
+                    copied = copyCustomer(worker, BookingHttpServer.parseInt(ids[i].trim(), "customerIds"));
+                }
+            } else if (named.containsKey("customer")) {
+                // The worker is sent the customer's ID in place of a mobile number, email or name it may not know
+                Customer customer = findCustomer("find", named.get("customer"));
+                if (customer == null) {
+                    return error(404, "Customer not found.");
+                }
+                Map<String, String> byId = new HashMap<>(named);
+                byId.remove("customer");
+                byId.put("customerId", String.valueOf(customer.getId()));
+                if (method.equals("GET")) {
+                    target = path + "?" + queryString(byId);
+                } else {
+                    body = Json.object(byId);
+                }
+                copied = copyCustomer(worker, customer);
+            } else if (named.containsKey("customerId")) {
+                copied = copyCustomer(worker, BookingHttpServer.parseInt(named.get("customerId"), "customerId"));
+            }
+            if (copied != null) {
+                return copied;
+            }
+            Reply reply = forward(worker, method, target, body);
+            return path.startsWith("/holds") ? new Reply(reply.status, globalHoldIds(reply.body, worker)) : reply;
+        }
+        if (path.equals("/notifications")) {
+            return fanOut(method, target, replies -> new Reply(200, sumCounters(replies)));
+        }
+        if (path.equals("/reports")) {
+            int k = query.containsKey("k") ? Integer.parseInt(query.get("k")) : 10;
+            return fanOut(method, "/reports?k=" + Integer.MAX_VALUE, replies -> new Reply(200, mergeReports(replies, k)));
+        }
+        if (path.equals("/journeys")) {
+            // Legs may belong to different workers, and each only knows the seats on its own buses
+            return error(501, "Journey planning is not available in cluster mode");
+        }
+        return error(404, "No such resource: " + path);
+    }
+
+    private int owner(String busNumber) {
+        return owner(busNumber, workers.size());
+    }
+
+    private int customerOwner(int customerId) {
+        return Math.floorMod(customerId, workers.size());
+    }
+
+    // Mobile numbers and emails are unique across the cluster, so every worker is asked before the owner stores
+    // the customer. Registering the same customer again answers 200 with the stored record, so a client may retry
+    // a registration whose reply it never saw.
+    private Reply register(Map<String, String> fields) throws IOException {
+        Customer customer = new Customer(BookingHttpServer.required(fields, "name"), BookingHttpServer.required(fields, "mobileNumber"),
+                BookingHttpServer.required(fields, "email"), BookingHttpServer.required(fields, "city"),
+                BookingHttpServer.parseInt(BookingHttpServer.required(fields, "age"), "age"));
+        int mobileStripe = Math.floorMod(customer.getMobileNumber().hashCode(), registrationLocks.length);
+        int emailStripe = Math.floorMod(customer.getEmail().hashCode(), registrationLocks.length);
+        synchronized (registrationLocks[Math.min(mobileStripe, emailStripe)]) {
+            synchronized (registrationLocks[Math.max(mobileStripe, emailStripe)]) {
+                Customer existing = findCustomer("mobile", customer.getMobileNumber());
+                if (existing == null) {
+                    existing = findCustomer("email", customer.getEmail());
+                }
+                if (existing != null) {
+                    return existing.toRecordString().equals(customer.withId(existing.getId()).toRecordString())
+                            ? new Reply(200, Json.customer(existing))
+                            : error(409, "A customer with this mobile number or email is already registered.");
+                }
+                Customer registered = customer.withId(lastCustomerId.incrementAndGet());
+                return forward(customerOwner(registered.getId()), "POST", "/customers", Json.customer(registered));
+            }
+        }
+    }
+
+    // Asks every worker by mobile, email or find; copies on non-owners are identical, and for find a mobile
+    // number or email match wins over a name, as it does in one process
+    private Customer findCustomer(String field, String key) throws IOException {
+        Customer found = null;
+        int foundRank = 0;
+        for (Reply reply : ask("GET", "/customers?" + field + "=" + URLEncoder.encode(key, StandardCharsets.UTF_8))) {
+            if (reply.status == 404) {
+                continue;
+            }
+            if (reply.status != 200) {
+                throw new IOException("Error looking up a customer: " + reply.body);
+            }
+            Customer customer = customer(reply.body);
+            int rank = customer.getMobileNumber().equals(key) ? 3 : customer.getEmail().equals(key) ? 2 : 1;
+            if (rank > foundRank || rank == foundRank && customer.getId() > found.getId()) {
+                found = customer;
+                foundRank = rank;
+            }
+        }
+        return found;
+    }
+
+    // Null once the bus's worker has the customer, else the reply to pass back
+    private Reply copyCustomer(int worker, int customerId) throws IOException {
+        if (customerOwner(customerId) == worker || copiedCustomers.contains(copyKey(worker, customerId))) {
+            return null;
+        }
+        Reply reply = forward(customerOwner(customerId), "GET", "/customers?id=" + customerId, "");
+        if (reply.status != 200) {
+            return reply.status == 404 ? error(404, "Customer not found: " + customerId) : reply;
+        }
+        return copyCustomer(worker, customer(reply.body));
+    }
+
+    // Records never change once stored, so a copy made once stays valid
+    private Reply copyCustomer(int worker, Customer customer) throws IOException {
+        if (customerOwner(customer.getId()) == worker || copiedCustomers.contains(copyKey(worker, customer.getId()))) {
+            return null;
+        }
+        Reply reply = forward(worker, "POST", "/customers", Json.customer(customer));
+        if (reply.status != 200 && reply.status != 201) {
+            System.out.println("Error copying customer " + customer.getId() + " to worker " + worker + ": " + reply.body);
+            return error(500, "Customer " + customer.getId() + " could not be copied to worker " + worker);
+        }
+        copiedCustomers.add(copyKey(worker, customer.getId()));
+        return null;
+    }
+
+    private long copyKey(int worker, int customerId) {
+        return worker + (long) customerId * workers.size();
+    }
+
+    // Each worker pages the customers it owns, skipping the copies it holds for bookings, and the pages are
+    // merged newest first
+    private Reply customerPage(Map<String, String> query) throws IOException {
+        int limit = BookingHttpServer.parseInt(query.getOrDefault("limit", String.valueOf(BookingHttpServer.DEFAULT_PAGE_SIZE)), "limit");
+        if (limit < 1 || limit > BookingHttpServer.MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + BookingHttpServer.MAX_PAGE_SIZE);
+        }
+        int before = BookingHttpServer.parseInt(query.getOrDefault("before", "0"), "before");
+        String page = "/customers?limit=" + limit + "&before=";
+        List<Reply> replies = ask("GET", page + before);
+        List<Customer> customers = new ArrayList<>();
+        for (int worker = 0; worker < workers.size(); worker++) {
+            Reply reply = replies.get(worker);
+            int owned = 0;
+            while (true) {
+                if (reply.status != 200) {
+                    return reply;
+                }
+                Map<String, String> members = Json.members(reply.body);
+                for (String element : Json.elements(members.get("customers"))) {
+                    Customer customer = customer(element);
+                    if (customerOwner(customer.getId()) == worker) {
+                        customers.add(customer);
+                        owned++;
+                    }
+                }
+                if (owned >= limit || members.get("nextCursor").equals("null")) {
+                    break;
+                }
+                reply = forward(worker, "GET", page + members.get("nextCursor"), "");
+            }
+        }
+        customers.sort(Comparator.comparingInt(Customer::getId).reversed());
+        List<Customer> result = customers.subList(0, Math.min(limit, customers.size()));
+        String nextCursor = result.size() < limit ? "null" : String.valueOf(result.get(result.size() - 1).getId());
+        return new Reply(200, "{\"customers\":" + Json.array(result, Json::customer) + ",\"nextCursor\":" + nextCursor + "}");
+    }
+
+    private static Customer customer(String json) {
+        Map<String, String> fields = Json.parseObject(json);
+        return new Customer(Integer.parseInt(fields.get("id")), fields.get("name"), fields.get("mobileNumber"),
+                fields.get("email"), fields.get("city"), Integer.parseInt(fields.get("age")));
+    }
+
+    private static String queryString(Map<String, String> query) {
+        StringJoiner joiner = new StringJoiner("&");
+        for (Map.Entry<String, String> entry : query.entrySet()) {
+            joiner.add(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" + URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return joiner.toString();
+    }
+
+    // A hold ID names its worker: local ID * workers + worker
+    private String globalHoldIds(String body, int worker) {
+        return HOLD_ID.matcher(body).replaceAll(match ->
+                "\"holdId\":" + (Long.parseLong(match.group(1)) * workers.size() + worker));
+    }
+
+    private Reply forward(int worker, String method, String target, String body) throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(workers.get(worker).resolve(target)).timeout(Duration.ofSeconds(30));
+        request = method.equals("POST")
+                ? request.POST(HttpRequest.BodyPublishers.ofString(body)).header("Content-Type", "application/json")
+                : request.method(method, HttpRequest.BodyPublishers.noBody());
+        try {
+            HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            return new Reply(response.statusCode(), response.body());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forwarding to worker " + worker, e);
+        }
+    }
+
+    // Asks every worker at once; the first failure is passed back as it is
+    private Reply fanOut(String method, String target, Function<List<Reply>, Reply> merge) throws IOException {
+        List<Reply> replies = ask(method, target);
+        for (Reply reply : replies) {
+            if (reply.status != 200) {
+                return reply;
+            }
+        }
+        return merge.apply(replies);
+    }
+
+    // Every worker's reply, in worker order
+    private List<Reply> ask(String method, String target) throws IOException {
+        List<CompletableFuture<HttpResponse<String>>> pending = new ArrayList<>();
+        for (URI worker : workers) {
+            pending.add(client.sendAsync(HttpRequest.newBuilder(worker.resolve(target)).timeout(Duration.ofSeconds(30))
+                    .method(method, HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        List<Reply> replies = new ArrayList<>();
+        for (CompletableFuture<HttpResponse<String>> future : pending) {
+            HttpResponse<String> response;
+            try {
+                response = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the workers", e);
+            } catch (ExecutionException e) {
+                throw new IOException(String.valueOf(e.getCause()), e.getCause());
+            }
+            replies.add(new Reply(response.statusCode(), response.body()));
+        }
+        return replies;
+    }
+
+    private static String concatenate(List<Reply> replies) {
+        List<String> elements = new ArrayList<>();
+        for (Reply reply : replies) {
+            elements.addAll(Json.elements(reply.body));
+        }
+        return Json.array(elements, element -> element);
+    }
+
+    // Rebuilds the matching buses into a route index, so the merged list comes out in the order one process gives
+    private static String mergeSearch(Map<String, String> query, List<Reply> replies) {
+        RouteIndex index = new RouteIndex();
+        for (Reply reply : replies) {
+            for (String element : Json.elements(reply.body)) {
+                Map<String, String> bus = Json.parseObject(element);
+                index.add(new Bus(bus.get("busNumber"), Integer.parseInt(bus.get("totalSeats")), bus.get("startPoint"),
+                        bus.get("endPoint"), bus.get("startTime"), Double.parseDouble(bus.get("fare")), bus.get("arrivalTime")));
+            }
+        }
+        String from = query.get("from");
+        String to = query.get("to");
+        List<Bus> buses = query.containsKey("departFrom") || query.containsKey("departUntil")
+                ? index.find(from, to, BookingHttpServer.parseTime(query.getOrDefault("departFrom", "00:00")),
+                        BookingHttpServer.parseTime(query.getOrDefault("departUntil", "23:59")))
+                : index.find(from, to);
+        return Json.array(buses, Json::bus);
+    }
+
+    private static String sumCounters(List<Reply> replies) {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (Reply reply : replies) {
+            for (Map.Entry<String, String> entry : Json.parseObject(reply.body).entrySet()) {
+                totals.merge(entry.getKey(), Long.parseLong(entry.getValue()), Long::sum);
+            }
+        }
+        StringJoiner counters = new StringJoiner(",", "{", "}");
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            counters.add(Json.quote(entry.getKey()) + ":" + entry.getValue());
+        }
+        return counters.toString();
+    }
+
+    // A route's trips can be spread over several workers, so every route is fetched and summed before ranking
+    private static String mergeReports(List<Reply> replies, int k) {
+        Map<String, double[]> routes = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+        long[] histogram = new long[OccupancyAnalytics.BUCKETS];
+        Map<String, Double> revenue = new TreeMap<>();
+        for (Reply reply : replies) {
+            Map<String, String> report = Json.members(reply.body);
+            for (String element : Json.elements(report.get("topRoutes"))) {
+                Map<String, String> stats = Json.parseObject(element);
+                String key = stats.get("route").toLowerCase(Locale.ROOT);
+                names.merge(key, stats.get("route"), (a, b) -> a.compareTo(b) <= 0 ? a : b);
+                double[] totals = routes.computeIfAbsent(key, x -> new double[5]);
+                totals[0] += Double.parseDouble(stats.get("trips"));
+                totals[1] += Double.parseDouble(stats.get("seatsOffered"));
+                totals[2] += Double.parseDouble(stats.get("seatsSold"));
+                totals[3] += Double.parseDouble(stats.get("waiting"));
+                totals[4] += Double.parseDouble(stats.get("revenue"));
+            }
+            List<String> buckets = Json.elements(report.get("loadFactorHistogram"));
+            for (int i = 0; i < histogram.length && i < buckets.size(); i++) {
+                histogram[i] += Long.parseLong(buckets.get(i));
+            }
+            for (Map.Entry<String, String> entry : Json.parseObject(report.get("revenueByRoute")).entrySet()) {
+                revenue.merge(entry.getKey(), Double.parseDouble(entry.getValue()), Double::sum);
+            }
+        }
+        List<OccupancyAnalytics.Stats> top = new ArrayList<>();
+        for (Map.Entry<String, double[]> entry : routes.entrySet()) {
+            double[] totals = entry.getValue();
+            top.add(new OccupancyAnalytics.Stats(names.get(entry.getKey()), (int) totals[0], (long) totals[1],
+                    (int) totals[2], (int) totals[3], Math.round(totals[4] * 100)));
+        }
+        top.sort(Comparator.comparingInt(OccupancyAnalytics.Stats::getSeatsSold).reversed().thenComparing(OccupancyAnalytics.Stats::getName));
+        StringJoiner revenueByRoute = new StringJoiner(",", "{", "}");
+        for (Map.Entry<String, Double> entry : revenue.entrySet()) {
+            revenueByRoute.add(Json.quote(entry.getKey()) + ":" + entry.getValue());
+        }
+        return "{\"topRoutes\":" + Json.array(top.subList(0, Math.min(k, top.size())), Json::routeStats) +
+                ",\"loadFactorHistogram\":" + Arrays.toString(histogram).replace(" ", "") +
+                ",\"revenueByRoute\":" + revenueByRoute + "}";
+    }
+
+    private static Reply error(int status, String message) {
+        return new Reply(status, "{\"error\":" + Json.quote(message) + "}");
+    }
+}
+
+// BenchmarkSuite class
+// Micro-benchmarks for the core operations, measured JMH-style: each case runs in several freshly forked JVMs, so
+// no case inherits another's JIT profile or heap and one unlucky JIT outcome does not decide the result. Each fork
+// warms up untimed and then times a number of iterations; the median and spread of all forks' iterations are
+// reported in nanoseconds per operation. Results can be saved as a baseline and later runs compared against it,
+// failing when an operation slows down past the threshold. Every fork also times a fixed reference job, and a
+// baseline is scaled by how much slower or faster that job ran than when the baseline was saved, so a machine
+// that is slower overall or busy with something else for the whole run does not read as a regression.
+// Run with: java BusReservationDSA --bench [--full] [--filter text] [--baseline file] [--save] [--threshold percent]
+class BenchmarkSuite {
+    private static final int FORKS = 3;
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int REFERENCE_ROUNDS = 20;
+    private static final long ITERATION_NANOS = 100_000_000L;
+
+    // Consumed results, so the JIT cannot discard the work being measured
+    static volatile long sink;
+
+    private final boolean full;
+    private final String filter;
+    // Set in a forked JVM: the one case it measures, as name|params
+    private final String onlyCase;
+    private final Path directory;
+    private final List<Result> results = new ArrayList<>();
+    private CustomerRegistration customerReg;
+    private Customer[] registered = new Customer[0];
+
+    private static class Result {
+        final String name;
+        final String params;
+        final double nanosPerOp;
+        final double error;
+        // Nanoseconds the reference job took in the same forks
+        final double reference;
+
+        Result(String name, String params, double nanosPerOp, double error, double reference) {
+            this.name = name;
+            this.params = params;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.reference = reference;
+        }
+
+        String key() {
+            return name + "|" + params;
+        }
+    }
+
+    private interface Workload {
+        // Builds fresh state and returns how many operations it can absorb before it must be prepared again
+        int prepare() throws Exception;
+
+        void run(int index) throws Exception;
+    }
+
+    // Only called in the JVM that measures the case, so setting up one case's data never costs the others
+    private interface WorkloadFactory {
+        Workload create() throws Exception;
+    }
+
+    private BenchmarkSuite(boolean full, String filter, String onlyCase) throws IOException {
+        this.full = full;
+        this.filter = filter;
+        this.onlyCase = onlyCase;
+        this.directory = Files.createTempDirectory("bus-bench");
+    }
+
+    public static boolean run(String[] args) throws Exception {
+        boolean full = false;
+        boolean save = false;
+        String filter = "";
+        String baseline = "benchmark-baseline.txt";
+        String onlyCase = null;
+        double threshold = 25;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--full": full = true; break;
+                case "--save": save = true; break;
+                case "--case": onlyCase = args[++i]; break;
+                case "--filter": filter = args[++i]; break;
+                case "--baseline": baseline = args[++i]; break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown benchmark option: " + args[i]);
+            }
+        }
+
+        BenchmarkSuite suite = new BenchmarkSuite(full, filter, onlyCase);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            suite.runAll(console);
+        } finally {
+            System.setOut(console);
+            suite.deleteDirectory();
+        }
+        if (onlyCase != null) {
+            return true;
+        }
+
+        if (save) {
+            suite.saveBaseline(baseline);
+            System.out.println("Baseline written to " + baseline);
+            return true;
+        }
+        return suite.compareWithBaseline(baseline, threshold);
+    }
+
+    private void runAll(PrintStream console) throws Exception {
+        if (onlyCase == null) {
+            console.printf("%-28s %-36s %14s %12s%n", "Benchmark", "Params", "ns/op", "+/-");
+        }
+        int[] busCounts = full ? new int[]{10, 1_000, 100_000} : new int[]{10, 1_000, 10_000};
+        int[] capacities = full ? new int[]{40, 1_000} : new int[]{40, 200};
+        int[] customerCounts = full ? new int[]{1_000, 100_000, 10_000_000} : new int[]{1_000, 100_000};
+
+        for (int buses : busCounts) {
+            benchmark(console, "searchBuses", "buses=" + buses, () -> searchBuses(buses));
+        }
+        for (int buses : busCounts) {
+            if (buses < 1_000) continue;
+            for (JourneyPlanner.Order order : JourneyPlanner.Order.values()) {
+                String params = "buses=" + buses + ",order=" + order.name().toLowerCase(Locale.ROOT);
+                benchmark(console, "planJourneys", params, () -> planJourneys(buses, order));
+            }
+        }
+        for (int buses : busCounts) {
+            for (int capacity : capacities) {
+                if ((long) buses * capacity > 2_000_000 && !full) continue;
+                String params = "buses=" + buses + ",capacity=" + capacity;
+                benchmark(console, "reserveSeat", params, () -> reserveSeat(buses, capacity));
+                benchmark(console, "reserveGroup", params + ",group=4", () -> reserveGroup(buses, capacity, 4));
+                benchmark(console, "cancelWithPromotion", params, () -> cancelWithPromotion(buses, capacity));
+            }
+        }
+        for (int customers : customerCounts) {
+            for (int capacity : capacities) {
+                String params = "customers=" + customers + ",capacity=" + capacity;
+                benchmark(console, "isCustomerReserved", params, () -> isCustomerReserved(customers, capacity));
+            }
+        }
+        for (int customers : customerCounts) {
+            if (customers > 1_000_000) continue;
+            benchmark(console, "importCustomers", "rows=" + customers, () -> importCustomers(customers));
+            benchmark(console, "loadCustomers", "rows=" + customers, () -> loadCustomers(customers));
+        }
+        for (int customers : customerCounts) {
+            String params = "reservations=" + customers;
+            benchmark(console, "saveToFile", params, () -> saveToFile(customers));
+            benchmark(console, "loadFromFile", params, () -> loadFromFile(customers));
+        }
     }
 
-    public void registerBus(Bus bus) {
-        if (busRegistry.containsKey(bus.getBusNumber())) {
-            System.out.println("Bus with number " + bus.getBusNumber() + " is already registered.");
-        } else {
-            busRegistry.put(bus.getBusNumber(), bus);
-            System.out.println("Bus registered successfully: " + bus);
-            saveToFile();
+    private void benchmark(PrintStream console, String name, String params, WorkloadFactory factory) throws Exception {
+        if (!(name + " " + params).contains(filter)) return;
+        String key = name + "|" + params;
+        if (onlyCase == null) {
+            Result result = fork(key);
+            results.add(result);
+            console.printf("%-28s %-36s %14.1f %12.1f%n", name, params, result.nanosPerOp, result.error);
+            return;
         }
-    }
+        if (!onlyCase.equals(key)) return;
+        Runner runner = new Runner(factory.create());
 
-    public Bus getBusByNumber(String busNumber) {
-        return busRegistry.get(busNumber);
-    }
+        // Warm up for a fixed time, growing the batch until it takes a measurable time, so one-off costs such as
+        // loading a bus on first use are paid before the batch is sized; none of these runs is measured
+        int batch = 1;
+        long elapsed = 0;
+        for (long warmed = 0; warmed < WARMUP_NANOS; warmed += elapsed) {
+            elapsed = runner.time(batch);
+            if (elapsed < ITERATION_NANOS / 10 && batch < runner.capacity / 2) {
+                batch *= 2;
+            }
+        }
+        elapsed = runner.time(batch);
+        batch = (int) Math.max(1, Math.min((double) batch * ITERATION_NANOS / Math.max(elapsed, 1), runner.capacity));
 
-    public List<Bus> searchBuses(String startPoint, String endPoint) {
-        List<Bus> matchingBuses = new ArrayList<>();
-        for (Bus bus : busRegistry.values()) {
-            if (bus.getStartPoint().equalsIgnoreCase(startPoint) && bus.getEndPoint().equalsIgnoreCase(endPoint)) {
-                matchingBuses.add(bus);
+        double[] samples = new double[MEASURED_ITERATIONS];
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+            elapsed = runner.time(batch);
+            if (iteration >= WARMUP_ITERATIONS) {
+                samples[iteration - WARMUP_ITERATIONS] = (double) elapsed / batch;
             }
         }
-        return matchingBuses;
+        StringJoiner reported = new StringJoiner(",", RESULT_PREFIX + referenceNanos() + "|", "");
+        for (double sample : samples) {
+            reported.add(String.valueOf(sample));
+        }
+        console.println(reported);
     }
 
-    public void viewAllBuses() {
-        if (busRegistry.isEmpty()) {
-            System.out.println("No buses registered.");
-        } else {
-            System.out.println("Registered Buses:");
-            for (Bus bus : busRegistry.values()) {
-                System.out.println(bus);
+    // Sorting a fixed array: the median of several rounds, timed after as many untimed ones
+    private static double referenceNanos() {
+        int[] data = new Random(42).ints(100_000).toArray();
+        double[] rounds = new double[REFERENCE_ROUNDS];
+        for (int round = -REFERENCE_ROUNDS; round < REFERENCE_ROUNDS; round++) {
+            int[] copy = data.clone();
+            long start = System.nanoTime();
+            Arrays.sort(copy);
+            long elapsed = System.nanoTime() - start;
+            sink += copy[copy.length / 2];
+            if (round >= 0) {
+                rounds[round] = elapsed;
             }
         }
+        Arrays.sort(rounds);
+        return rounds[REFERENCE_ROUNDS / 2];
     }
 
-    public void saveToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            for (Bus bus : busRegistry.values()) {
-                writer.write(bus.toDataString());
-                writer.newLine();
+    private static final String RESULT_PREFIX = "result|";
+
+    // Measures one case in child JVMs with this JVM's options, each reporting its samples on a result line. The
+    // median keeps an iteration that caught a collection or a journal compaction from moving the result, and the
+    // spread includes the differences between forks.
+    private Result fork(String key) throws IOException, InterruptedException {
+        List<String> command = ClusterRouter.javaCommand(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(List.of("BusReservationDSA", "--bench", "--case", key));
+        if (full) {
+            command.add("--full");
+        }
+        List<Double> samples = new ArrayList<>();
+        double[] references = new double[FORKS];
+        for (int fork = 0; fork < FORKS; fork++) {
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            String reported = null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        reported = line.substring(RESULT_PREFIX.length());
+                    }
+                }
+            }
+            int status = process.waitFor();
+            if (reported == null) {
+                throw new IOException("Benchmark " + key + " exited with status " + status + " without a result");
+            }
+            int separator = reported.indexOf('|');
+            references[fork] = Double.parseDouble(reported.substring(0, separator));
+            for (String sample : reported.substring(separator + 1).split(",")) {
+                samples.add(Double.parseDouble(sample));
             }
-        } catch (IOException e) {
-            System.out.println("Error saving buses: " + e.getMessage());
         }
+        Arrays.sort(references);
+        Collections.sort(samples);
+        double median = (samples.get((samples.size() - 1) / 2) + samples.get(samples.size() / 2)) / 2;
+        // A stall in one iteration would swamp a standard deviation, so the spread is taken about the median too:
+        // the median distance from it, scaled to match a standard deviation when the samples are normal
+        double[] deviations = samples.stream().mapToDouble(sample -> Math.abs(sample - median)).sorted().toArray();
+        double spread = 1.4826 * (deviations[(deviations.length - 1) / 2] + deviations[deviations.length / 2]) / 2;
+        int separator = key.indexOf('|');
+        return new Result(key.substring(0, separator), key.substring(separator + 1), median, spread, references[FORKS / 2]);
     }
 
-    public void loadFromFile() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                try {
-                    Bus bus = Bus.fromDataString(line);
-                    busRegistry.put(bus.getBusNumber(), bus);
-                } catch (IllegalArgumentException e) {
-                    System.out.println("Skipping invalid line in bus file: " + line);
-                }
+    private void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
             }
-        } catch (IOException e) {
-            System.out.println("Error loading buses: " + e.getMessage());
         }
     }
-}
 
-// CustomerRegistration class
-class CustomerRegistration {
-    private final Map<String, Customer> customers = new HashMap<>();
-    private final String fileName;
+    // Runs timed batches, preparing fresh state (untimed) whenever the workload runs out of room
+    private static class Runner {
+        final Workload workload;
+        final int capacity;
+        int available;
+        int index;
 
-    public CustomerRegistration(String fileName) {
-        this.fileName = fileName;
+        Runner(Workload workload) throws Exception {
+            this.workload = workload;
+            this.capacity = workload.prepare();
+            this.available = capacity;
+        }
+
+        long time(int batch) throws Exception {
+            if (available < batch) {
+                available = workload.prepare();
+                index = 0;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                workload.run(index++);
+            }
+            long elapsed = System.nanoTime() - start;
+            available -= batch;
+            return elapsed;
+        }
     }
 
-    public void registerCustomer(Customer customer) {
-        customers.put(customer.getName(), customer);
-        System.out.println("Customer registered successfully.");
-        saveToFile();
+    private Workload searchBuses(int buses) throws IOException {
+        int routes = Math.max(1, (int) Math.sqrt(buses));
+        BusRegistration busReg = loadBuses(buses, 40, routes);
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
+
+            public void run(int index) {
+                int route = index % routes;
+                sink += busReg.searchBuses("Stop" + route, "Stop" + (route + 1)).size();
+            }
+        };
     }
 
-    public Customer getCustomerByName(String name) {
-        return customers.get(name);
+    private Workload planJourneys(int buses, JourneyPlanner.Order order) {
+        int stops = Math.max(10, buses / 20);
+        BusRegistration busReg = new BusRegistration(directory.resolve("network-" + buses + ".txt").toString());
+        Random random = new Random(buses);
+        for (int i = 0; i < buses; i++) {
+            int from = random.nextInt(stops);
+            int to = (from + 1 + random.nextInt(stops - 1)) % stops;
+            int departure = random.nextInt(24 * 60);
+            int arrival = (departure + 30 + random.nextInt(150)) % (24 * 60);
+            busReg.registerBus(new Bus("N" + i, 40, "Stop" + from, "Stop" + to,
+                    String.format("%02d:%02d", departure / 60, departure % 60), 5 + random.nextInt(45),
+                    String.format("%02d:%02d", arrival / 60, arrival % 60)));
+        }
+        LocalTime after = LocalTime.of(6, 0);
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
+
+            public void run(int index) {
+                String from = "Stop" + index % stops;
+                String to = "Stop" + (index * 31 + 7) % stops;
+                sink += busReg.planJourneys(from, to, after, 3, order, 10, bus -> true).size();
+            }
+        };
     }
 
-    public void viewAllCustomers() {
-        if (customers.isEmpty()) {
-            System.out.println("No customers registered.");
-        } else {
-            System.out.println("Registered Customers (Newest to Oldest):");
-            Stack<Customer> stack = new Stack<>();
-            for (Customer customer : customers.values()) {
-                stack.push(customer);
+    private Workload reserveSeat(int buses, int capacity) throws IOException {
+        BusRegistration busReg = loadBuses(buses, capacity, 1);
+        String[] busNumbers = busNumbers(buses);
+        Customer[] customers = customers(Math.min(buses * capacity, 100_000));
+        ReservationSystem[] current = new ReservationSystem[1];
+        return new Workload() {
+            public int prepare() throws IOException {
+                current[0] = newReservationSystem("reserve");
+                return buses * capacity;
             }
-            while (!stack.isEmpty()) {
-                System.out.println(stack.pop());
+
+            public void run(int index) {
+                sink += current[0].reserveSeat(customers[index % customers.length], busNumbers[index % buses], busReg).getSeat();
             }
+        };
+    }
+
+    // One operation books a whole group into adjacent seats
+    private Workload reserveGroup(int buses, int capacity, int groupSize) throws IOException {
+        BusRegistration busReg = loadBuses(buses, capacity, 1);
+        String[] busNumbers = busNumbers(buses);
+        Customer[] customers = customers(Math.min(buses * capacity, 100_000));
+        List<List<Customer>> groups = new ArrayList<>();
+        for (int i = 0; i + groupSize <= customers.length; i += groupSize) {
+            groups.add(Arrays.asList(customers).subList(i, i + groupSize));
         }
+        ReservationSystem[] current = new ReservationSystem[1];
+        return new Workload() {
+            public int prepare() throws IOException {
+                current[0] = newReservationSystem("group");
+                return buses * (capacity / groupSize);
+            }
+
+            public void run(int index) {
+                sink += current[0].reserveGroup(groups.get(index % groups.size()), busNumbers[index % buses], busReg, true, false).getSeat();
+            }
+        };
     }
 
-    public void saveToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            for (Customer customer : customers.values()) {
-                writer.write(customer.toDataString());
-                writer.newLine();
+    private Workload cancelWithPromotion(int buses, int capacity) throws IOException {
+        BusRegistration busReg = loadBuses(buses, capacity, 1);
+        String[] busNumbers = busNumbers(buses);
+        int waiting = Math.max(1, capacity / 4);
+        Customer[] customers = customers(capacity + waiting);
+        ReservationSystem[] current = new ReservationSystem[1];
+        return new Workload() {
+            public int prepare() throws IOException {
+                current[0] = loadReservations("cancel", buses, capacity, waiting, customers);
+                return buses * waiting;
             }
-        } catch (IOException e) {
-            System.out.println("Error saving customers: " + e.getMessage());
-        }
+
+            // Every cancellation frees a seat on a full bus and promotes the head of its waiting list
+            public void run(int index) {
+                Customer customer = customers[index / buses];
+                sink += current[0].cancelReservation(customer, busNumbers[index % buses]).getSeat();
+            }
+        };
     }
 
-    public void loadFromFile() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                try {
-                    Customer customer = Customer.fromDataString(line);
-                    customers.put(customer.getName(), customer);
-                } catch (IllegalArgumentException e) {
-                    System.out.println("Skipping invalid line in customer file: " + line);
+    private Workload isCustomerReserved(int customerCount, int capacity) throws IOException {
+        int buses = Math.max(1, customerCount / capacity);
+        String[] busNumbers = busNumbers(buses);
+        Customer[] customers = customers(capacity);
+        ReservationSystem reservationSystem = loadReservations("lookup", buses, capacity, 0, customers);
+        Customer stranger = new Customer("stranger", "0", "nobody@example.com", "Nowhere", 1);
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
+
+            public void run(int index) {
+                Customer customer = (index & 1) == 0 ? customers[index % capacity] : stranger;
+                if (reservationSystem.isCustomerReserved(customer, busNumbers[index % buses])) {
+                    sink++;
                 }
             }
-        } catch (IOException e) {
-            System.out.println("Error loading customers: " + e.getMessage());
-        }
+        };
     }
-}
 
-// ReservationSystem class
-class ReservationSystem {
-    private final Map<String, List<Customer>> reservations = new HashMap<>();
-    private final Map<String, Queue<Customer>> waitingList = new HashMap<>();
-    private final String fileName;
+    private Workload saveToFile(int reservations) throws IOException {
+        int capacity = 40;
+        int buses = Math.max(1, reservations / capacity);
+        ReservationSystem reservationSystem = loadReservations("save", buses, capacity, 0, customers(capacity));
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
 
-    public ReservationSystem(String fileName) {
-        this.fileName = fileName;
+            public void run(int index) {
+                reservationSystem.saveToFile();
+            }
+        };
     }
 
-    public void reserveSeat(Customer customer, String busNumber, BusRegistration busReg) {
-        Bus bus = busReg.getBusByNumber(busNumber);
-        if (bus == null) {
-            System.out.println("No bus registered with: " + busNumber);
-            return;
-        }
+    private Workload loadFromFile(int reservations) throws IOException {
+        int capacity = 40;
+        int buses = Math.max(1, reservations / capacity);
+        loadReservations("load", buses, capacity, 0, customers(capacity));
+        String fileName = directory.resolve("load-reservations.txt").toString();
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
 
-        int capacity = bus.getTotalSeats();
-        reservations.putIfAbsent(busNumber, new ArrayList<>());
-        List<Customer> busReservations = reservations.get(busNumber);
+            public void run(int index) {
+                ReservationSystem reservationSystem = new ReservationSystem(fileName, customerReg, quietOutbox());
+                reservationSystem.loadFromFile();
+                sink += reservationSystem.countReserved();
+            }
+        };
+    }
 
-        if (busReservations.size() < capacity) {
-            busReservations.add(customer);
-            System.out.println("Seat reserved for " + customer);
-        } else {
-            waitingList.putIfAbsent(busNumber, new LinkedList<>());
-            waitingList.get(busNumber).offer(customer);
-            System.out.println("Bus seats are full. Added to waiting list: " + customer);
+    // One operation imports the whole CSV into an empty registry and saves it
+    private Workload importCustomers(int rows) throws IOException {
+        Path csv = directory.resolve("import-" + rows + ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            writer.write("name,mobileNumber,email,city,age");
+            writer.newLine();
+            for (int i = 0; i < rows; i++) {
+                writer.write(new Customer("c" + i, String.valueOf(9_000_000_000L + i), "c" + i + "@example.com",
+                        "City" + (i % 50), 18 + i % 60).toDataString());
+                writer.newLine();
+            }
         }
-        saveToFile();
-    }
-    public boolean isCustomerReserved(Customer customer, String busNumber) {
-        List<Customer> busReservations = reservations.get(busNumber);
-        return busReservations != null && busReservations.contains(customer);
+        Path file = directory.resolve("import-customers.txt");
+        BulkImporter[] importer = new BulkImporter[1];
+        return new Workload() {
+            public int prepare() throws IOException {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(Paths.get(file + ".journal"));
+                importer[0] = new BulkImporter(new CustomerRegistration(file.toString()), null, null);
+                return 1;
+            }
+
+            public void run(int index) throws IOException {
+                try (BufferedReader reader = Files.newBufferedReader(csv)) {
+                    sink += importer[0].importCustomers(reader).getImported();
+                }
+            }
+        };
     }
 
-    public void addCustomerToWaitingList(Customer customer, String busNumber, BusRegistration busReg) {
-        Bus bus = busReg.getBusByNumber(busNumber);
-        if (bus == null) {
-            System.out.println("No such bus registered with number: " + busNumber);
-            return;
+    // One operation loads a saved customer file into an empty registry
+    private Workload loadCustomers(int rows) throws IOException {
+        Path file = directory.resolve("load-customers-" + rows + ".txt");
+        CustomerRegistration source = new CustomerRegistration(file.toString());
+        List<Customer> customers = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            customers.add(new Customer("c" + i, String.valueOf(9_000_000_000L + i), "c" + i + "@example.com", "City" + (i % 50), 18 + i % 60));
         }
+        source.registerCustomers(customers);
+        source.saveToFile();
+        return new Workload() {
+            public int prepare() {
+                return Integer.MAX_VALUE;
+            }
 
-        int capacity = bus.getTotalSeats();
-        reservations.putIfAbsent(busNumber, new ArrayList<>());
-        List<Customer> busReservations = reservations.get(busNumber);
+            public void run(int index) {
+                CustomerRegistration customerReg = new CustomerRegistration(file.toString());
+                customerReg.loadFromFile();
+                sink += customerReg.getCustomerCount();
+            }
+        };
+    }
 
-        if (busReservations.size() >= capacity) {
-            waitingList.putIfAbsent(busNumber, new LinkedList<>());
-            waitingList.get(busNumber).offer(customer);
-            System.out.println("Bus seats are full. Added to waiting list: " + customer);
-        } else {
-            System.out.println("Seats are still available. Use option 6 to reserve a seat.");
-        }
-        saveToFile();
-    }
-
-
-    public void cancelReservation(Customer customer, String busNumber) {
-        List<Customer> busReservations = reservations.get(busNumber);
-        if (busReservations != null && busReservations.remove(customer)) {
-            // Notify the passenger whose reservation is canceled
-            System.out.println("Notification to " + customer.getName() + ": Your seat has been canceled successfully.");
-            
-            // Notify co-passengers
-            for (Customer coPassenger : busReservations) {
-                System.out.println("Notification to " + coPassenger.getName() + ": Dear " + coPassenger.getName() +
-                        ", your co-passenger " + customer.getName() + " canceled their seat just now.");
-            }
-    
-            // Promote a customer from the waiting list, if available
-            Queue<Customer> waitQueue = waitingList.get(busNumber);
-            if (waitQueue != null && !waitQueue.isEmpty()) {
-                Customer promotedCustomer = waitQueue.poll();
-                busReservations.add(promotedCustomer);
-    
-                // Notify the promoted passenger
-                System.out.println("Notification to " + promotedCustomer.getName() +
-                        ": Dear " + promotedCustomer.getName() + ", your seat is now booked from the waiting list!");
+    // Buses are written straight into a snapshot and loaded, so setting up 100k buses costs no journal writes
+    private BusRegistration loadBuses(int buses, int capacity, int routes) throws IOException {
+        Path file = directory.resolve("buses-" + buses + "-" + capacity + "-" + routes + ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < buses; i++) {
+                int route = i % routes;
+                int minutes = (i * 7) % (24 * 60);
+                writer.write(new Bus("B" + i, capacity, "Stop" + route, "Stop" + (route + 1),
+                        String.format("%02d:%02d", minutes / 60, minutes % 60), 100 + route).toDataString());
+                writer.newLine();
             }
-        } else {
-            System.out.println("No reservation found for " + customer);
         }
-        saveToFile();
+        BusRegistration busReg = new BusRegistration(file.toString());
+        busReg.loadFromFile();
+        return busReg;
     }
-    
 
-    public void viewReservations(String busNumber) {
-        List<Customer> busReservations = reservations.get(busNumber);
-        if (busReservations != null && !busReservations.isEmpty()) {
-            System.out.println("Reservations for Bus " + busNumber + ":");
-            for (Customer customer : busReservations) {
-                System.out.println(customer);
+    // Every bus gets the same passengers in seats 1..capacity, followed by the rest on its waiting list
+    private ReservationSystem loadReservations(String prefix, int buses, int capacity, int waiting, Customer[] customers) throws IOException {
+        String fileName = directory.resolve(prefix + "-reservations.txt").toString();
+        Files.deleteIfExists(Paths.get(fileName + ".journal"));
+        Files.deleteIfExists(directory.resolve(prefix + "-reservations.dat"));
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName))) {
+            for (int bus = 0; bus < buses; bus++) {
+                writer.write("Reservations:B" + bus);
+                writer.newLine();
+                for (int seat = 1; seat <= capacity; seat++) {
+                    writer.write(seat + "," + customers[seat - 1].getId());
+                    writer.newLine();
+                }
+                writer.write("WaitingList:B" + bus);
+                writer.newLine();
+                for (int i = 0; i < waiting; i++) {
+                    writer.write(String.valueOf(customers[capacity + i].getId()));
+                    writer.newLine();
+                }
             }
-        } else {
-            System.out.println("No reservations found for Bus " + busNumber);
         }
+        ReservationSystem reservationSystem = new ReservationSystem(fileName, customerReg, quietOutbox());
+        reservationSystem.loadFromFile();
+        return reservationSystem;
     }
 
-    public void viewWaitingList(String busNumber) {
-        Queue<Customer> waitQueue = waitingList.get(busNumber);
-        if (waitQueue != null && !waitQueue.isEmpty()) {
-            System.out.println("Waiting List for Bus " + busNumber + ":");
-            for (Customer customer : waitQueue) {
-                System.out.println(customer);
-            }
-        } else {
-            System.out.println("No waiting list found for Bus " + busNumber);
+    private ReservationSystem newReservationSystem(String prefix) throws IOException {
+        Path file = directory.resolve(prefix + "-reservations.txt");
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Paths.get(file + ".journal"));
+        Files.deleteIfExists(directory.resolve(prefix + "-reservations.dat"));
+        return new ReservationSystem(file.toString(), customerReg, quietOutbox());
+    }
+
+    private static NotificationOutbox quietOutbox() {
+        return new NotificationOutbox(List.of(new StubNotificationSink()), NotificationOutbox.DEFAULT_CAPACITY, 1024, 0);
+    }
+
+    private static String[] busNumbers(int buses) {
+        String[] busNumbers = new String[buses];
+        for (int i = 0; i < buses; i++) {
+            busNumbers[i] = "B" + i;
         }
+        return busNumbers;
     }
 
-    public void saveToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            for (Map.Entry<String, List<Customer>> entry : reservations.entrySet()) {
-                writer.write("Reservations:" + entry.getKey());
-                writer.newLine();
-                for (Customer customer : entry.getValue()) {
-                    writer.write(customer.toDataString());
+    // Customers are registered through a snapshot as well; IDs are 1..count, so a larger registry
+    // still resolves every reservation written against a smaller one
+    private Customer[] customers(int count) throws IOException {
+        if (registered.length < count) {
+            Path file = directory.resolve("customers-" + count + ".txt");
+            try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(new Customer(i + 1, "c" + i, String.valueOf(9_000_000_000L + i), "c" + i + "@example.com",
+                            "City" + (i % 50), 18 + i % 60).toRecordString());
                     writer.newLine();
                 }
             }
-            for (Map.Entry<String, Queue<Customer>> entry : waitingList.entrySet()) {
-                writer.write("WaitingList:" + entry.getKey());
+            customerReg = new CustomerRegistration(file.toString());
+            customerReg.loadFromFile();
+            registered = new Customer[count];
+            for (int i = 0; i < count; i++) {
+                registered[i] = customerReg.getCustomerById(i + 1);
+            }
+        }
+        return Arrays.copyOf(registered, count);
+    }
+
+    // Cases this run did not measure, such as those left out by --filter, keep their recorded values
+    private void saveBaseline(String fileName) throws IOException {
+        Map<String, double[]> values = readBaseline(fileName);
+        for (Result result : results) {
+            values.put(result.key(), new double[]{result.nanosPerOp, result.error, result.reference});
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write("# benchmark|params|ns/op|+/-|reference ns, written by --bench --save");
+            writer.newLine();
+            for (Map.Entry<String, double[]> entry : values.entrySet()) {
+                double[] value = entry.getValue();
+                writer.write(entry.getKey() + "|" + String.format(Locale.ROOT, "%.1f|%.1f|%.0f", value[0], value[1], value[2]));
                 writer.newLine();
-                for (Customer customer : entry.getValue()) {
-                    writer.write(customer.toDataString());
-                    writer.newLine();
-                }
             }
-        } catch (IOException e) {
-            System.out.println("Error saving reservations: " + e.getMessage());
         }
     }
 
-    public void loadFromFile(CustomerRegistration customerReg) {
+    // {ns/op, +/-, reference ns} by name|params; lines saved with only ns/op have an error and reference of 0
+    private static Map<String, double[]> readBaseline(String fileName) throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        if (!new File(fileName).exists()) {
+            return baseline;
+        }
         try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
             String line;
-            String currentBus = null;
-            boolean isWaitingList = false;
-
             while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                if (line.startsWith("Reservations:")) {
-                    currentBus = line.substring(13).trim();
-                    isWaitingList = false;
-                    reservations.putIfAbsent(currentBus, new ArrayList<>());
-                } else if (line.startsWith("WaitingList:")) {
-                    currentBus = line.substring(12).trim();
-                    isWaitingList = true;
-                    waitingList.putIfAbsent(currentBus, new LinkedList<>());
-                } else {
-                    try {
-                        Customer customer = Customer.fromDataString(line);
-                        if (isWaitingList) {
-                            waitingList.get(currentBus).offer(customer);
-                        } else {
-                            reservations.get(currentBus).add(customer);
-                        }
-                    } catch (IllegalArgumentException e) {
-                        System.out.println("Skipping invalid line in reservation file: " + line);
-                    }
+                if (line.startsWith("#") || line.isBlank()) continue;
+                String[] fields = line.split("\\|");
+                double[] value = new double[3];
+                for (int field = 2; field < fields.length && field < 5; field++) {
+                    value[field - 2] = Double.parseDouble(fields[field]);
                 }
+                baseline.put(fields[0] + "|" + fields[1], value);
+            }
+        }
+        return baseline;
+    }
+
+    private boolean compareWithBaseline(String fileName, double thresholdPercent) throws IOException {
+        if (!new File(fileName).exists()) {
+            System.out.println("No baseline at " + fileName + "; run with --save to create one.");
+            return true;
+        }
+        Map<String, double[]> baseline = readBaseline(fileName);
+        // One reference job swings with whatever else the machine was doing at that moment, so the whole run is
+        // scaled by the median ratio across cases rather than each case by its own
+        double[] ratios = results.stream()
+                .filter(result -> baseline.containsKey(result.key()) && baseline.get(result.key())[2] > 0)
+                .mapToDouble(result -> result.reference / baseline.get(result.key())[2])
+                .sorted().toArray();
+        double scale = ratios.length == 0 ? 1 : (ratios[(ratios.length - 1) / 2] + ratios[ratios.length / 2]) / 2;
+        boolean passed = true;
+        for (Result result : results) {
+            double[] recorded = baseline.get(result.key());
+            if (recorded == null) continue;
+            double expected = recorded[0] * scale;
+            double change = (result.nanosPerOp - expected) / expected * 100;
+            // Only flag slowdowns that stand clear of the noise in both this run and the baseline
+            double error = Math.hypot(result.error, recorded[1] * scale);
+            if (change > thresholdPercent && result.nanosPerOp - 2 * error > expected) {
+                passed = false;
+                System.out.printf("REGRESSION %s %s: %.1f ns/op vs baseline %.1f, %.1f scaled to this machine (+%.0f%%)%n",
+                        result.name, result.params, result.nanosPerOp, recorded[0], expected, change);
             }
-        } catch (IOException e) {
-            System.out.println("Error loading reservations: " + e.getMessage());
         }
+        if (passed) {
+            System.out.println("No regressions beyond " + thresholdPercent + "% against " + fileName + ".");
+        }
+        return passed;
     }
 }
 
 // Main class
 public class BusReservationDSA {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--stress")) {
+            System.exit(ConcurrencyStressCheck.run(args) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(BenchmarkSuite.run(args) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--script")) {
+            System.exit(CommandDriver.runScript(args) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--cluster")) {
+            ClusterRouter.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--loadgen")) {
+            System.exit(CommandDriver.runLoad(args) ? 0 : 1);
+        }
+        // --snapshot-to-text in.dat out.txt [customers.txt], --snapshot-from-text in.txt out.dat [customers.txt]
+        if (args.length >= 3 && (args[0].equals("--snapshot-to-text") || args[0].equals("--snapshot-from-text"))) {
+            CustomerRegistration customerReg = new CustomerRegistration(args.length > 3 ? args[3] : "customers.txt");
+            customerReg.loadFromFile();
+            if (args[0].equals("--snapshot-to-text")) {
+                ReservationSnapshot.binaryToText(args[1], args[2], customerReg);
+            } else {
+                ReservationSnapshot.textToBinary(args[1], args[2], customerReg);
+            }
+            customerReg.saveToFile();
+            return;
+        }
+
+        // --import buses|customers|reservations file.csv
+        if (args.length >= 3 && args[0].equals("--import")) {
+            CustomerRegistration customerReg = new CustomerRegistration("customers.txt");
+            BusRegistration busReg = new BusRegistration("buses.txt");
+            ReservationSystem reservationSystem = new ReservationSystem("reservations.txt", customerReg);
+            customerReg.loadFromFile();
+            busReg.loadFromFile();
+            reservationSystem.loadFromFile();
+            BulkImporter importer = new BulkImporter(customerReg, busReg, reservationSystem);
+            BulkImporter.Report report;
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[2]))) {
+                switch (args[1]) {
+                    case "buses": report = importer.importBuses(reader); break;
+                    case "customers": report = importer.importCustomers(reader); break;
+                    case "reservations": report = importer.importReservations(reader); break;
+                    default: throw new IllegalArgumentException("Unknown import kind: " + args[1]);
+                }
+            }
+            reservationSystem.getOutbox().shutdown();
+            for (String error : report.getErrors()) {
+                System.out.println(error);
+            }
+            if (report.getFailed() > report.getErrors().size()) {
+                System.out.println("... and " + (report.getFailed() - report.getErrors().size()) + " more");
+            }
+            System.out.println(report);
+            System.exit(report.getFailed() == 0 ? 0 : 1);
+        }
+
         CustomerRegistration customerReg = new CustomerRegistration("customers.txt");
-        ReservationSystem reservationSystem = new ReservationSystem("reservations.txt");
+        NotificationOutbox outbox = NotificationOutbox.fromSpec(System.getProperty("bus.notifications"));
+        ReservationSystem reservationSystem = new ReservationSystem("reservations.txt", customerReg, outbox);
         BusRegistration busReg = new BusRegistration("buses.txt");
 
         customerReg.loadFromFile();
         busReg.loadFromFile();
-        reservationSystem.loadFromFile(customerReg);
+        reservationSystem.loadFromFile();
+        reservationSystem.enableAnalytics(busReg);
+
+        // Fold the journals back into the snapshots off the booking path
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            customerReg.compactIfNeeded();
+            busReg.compactIfNeeded();
+            reservationSystem.compactIfNeeded();
+        }, 30, 30, TimeUnit.SECONDS);
+
+        // Metrics are always on JMX; -Dbus.metrics.dump=<file> also writes them out every 30 seconds and on exit
+        Metrics.publish(reservationSystem);
+        String metricsDump = System.getProperty("bus.metrics.dump");
+        Runnable dumpMetrics = () -> {
+            if (metricsDump == null) return;
+            try {
+                Metrics.dump(metricsDump);
+            } catch (IOException e) {
+                System.out.println("Error writing metrics: " + e.getMessage());
+            }
+        };
+        compactor.scheduleWithFixedDelay(dumpMetrics, 30, 30, TimeUnit.SECONDS);
+        // Trips whose date has passed move to the archive, checked hourly so the first run after midnight catches them
+        compactor.scheduleWithFixedDelay(() -> reservationSystem.archivePastTrips(LocalDate.now()), 0, 1, TimeUnit.HOURS);
+
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            BookingHttpServer server = new BookingHttpServer(customerReg, busReg, reservationSystem);
+            server.start(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                outbox.shutdown();
+                compactor.shutdown();
+                customerReg.saveToFile();
+                busReg.saveToFile();
+                reservationSystem.saveToFile();
+                dumpMetrics.run();
+            }));
+            System.out.println("Booking API listening on port " + server.getPort());
+            new CountDownLatch(1).await();
+            return;
+        }
 
         try (Scanner scanner = new Scanner(System.in)) {
             while (true) {
@@ -450,13 +7949,20 @@ public class BusReservationDSA {
                 System.out.println("* 8. Request Additional Seat   *");
                 System.out.println("* 9. View Reservations         *");
                 System.out.println("* 10. View Waiting Queue       *");
-                System.out.println("* 11. Exit                     *");
+                System.out.println("* 11. Plan Journey             *");
+                System.out.println("* 12. Leave Waiting List       *");
+                System.out.println("* 13. Group Booking            *");
+                System.out.println("* 14. Exit                     *");
                 System.out.println("********************************");
                 System.out.print("Enter your choice: ");
                 int choice = scanner.nextInt();
                 scanner.nextLine();
                 switch (choice) {
                     case 1:
+                        if (!customerReg.assignsIds()) {
+                            System.out.println("This is a cluster worker; register customers through the cluster router.");
+                            break;
+                        }
                         System.out.print("Enter Name: ");
                         String name = scanner.nextLine();
                         System.out.print("Enter Mobile: ");
@@ -468,8 +7974,12 @@ public class BusReservationDSA {
                         System.out.print("Enter Age: ");
                         int age = scanner.nextInt();
                         scanner.nextLine();
-                        Customer customer = new Customer(name, mobile, email, city, age);
-                        customerReg.registerCustomer(customer);
+                        Customer customer = customerReg.registerCustomer(new Customer(name, mobile, email, city, age));
+                        if (customer != null) {
+                            System.out.println("Customer registered successfully with ID " + customer.getId() + ".");
+                        } else {
+                            System.out.println("A customer with this mobile number or email is already registered.");
+                        }
                         break;
 
                     case 2:
@@ -488,11 +7998,17 @@ public class BusReservationDSA {
                         String endPoint = scanner.nextLine();
                         System.out.print("Enter Start Time: ");
                         String startTime = scanner.nextLine();
+                        System.out.print("Enter Arrival Time (blank if unknown): ");
+                        String arrivalTime = scanner.nextLine();
                         System.out.print("Enter Fare: ");
                         double fare = scanner.nextDouble();
                         scanner.nextLine();
-                        Bus bus = new Bus(busNumber, seats, startPoint, endPoint, startTime, fare);
-                        busReg.registerBus(bus);
+                        Bus bus = new Bus(busNumber, seats, startPoint, endPoint, startTime, fare, arrivalTime);
+                        if (busReg.registerBus(bus)) {
+                            System.out.println("Bus registered successfully: " + bus);
+                        } else {
+                            System.out.println("Bus with number " + bus.getBusNumber() + " is already registered.");
+                        }
                         break;
 
                     case 4:
@@ -504,7 +8020,22 @@ public class BusReservationDSA {
                         startPoint = scanner.nextLine();
                         System.out.print("Enter End Point: ");
                         endPoint = scanner.nextLine();
-                        List<Bus> buses = busReg.searchBuses(startPoint, endPoint);
+                        System.out.print("Depart From (e.g. 08:00, blank for any time): ");
+                        String from = scanner.nextLine();
+                        List<Bus> buses;
+                        if (from.isBlank()) {
+                            buses = busReg.searchBuses(startPoint, endPoint);
+                        } else {
+                            System.out.print("Depart Until (e.g. 12:00): ");
+                            String until = scanner.nextLine();
+                            LocalTime fromTime = Bus.parseTime(from);
+                            LocalTime untilTime = Bus.parseTime(until);
+                            if (fromTime == null || untilTime == null) {
+                                System.out.println("Invalid time. Use a format such as 08:00 or 8:00 AM.");
+                                break;
+                            }
+                            buses = busReg.searchBuses(startPoint, endPoint, fromTime, untilTime);
+                        }
                         if (buses.isEmpty()) {
                             System.out.println("No buses found for the specified route.");
                         } else {
@@ -516,42 +8047,66 @@ public class BusReservationDSA {
                         break;
 
                     case 6:
-                        System.out.print("Enter Customer Name: ");
+                        System.out.print("Enter Customer Mobile, Email or Name: ");
                         name = scanner.nextLine();
-                        customer = customerReg.getCustomerByName(name);
+                        customer = customerReg.findCustomer(name);
                         if (customer != null) {
                             System.out.print("Enter Bus Number: ");
                             busNumber = scanner.nextLine();
-                            reservationSystem.reserveSeat(customer, busNumber, busReg);
+                            busNumber = readTrip(scanner, busNumber, true);
+                            BookingResult result = reservationSystem.reserveSeat(customer, busNumber, busReg);
+                            if (result.getStatus() == BookingResult.Status.NO_SUCH_BUS) {
+                                System.out.println("No bus registered with: " + busNumber);
+                            } else if (result.getStatus() == BookingResult.Status.RESERVED) {
+                                System.out.println("Seat " + result.getSeat() + " reserved for " + customer);
+                            } else if (result.getStatus() == BookingResult.Status.ALREADY_WAITLISTED) {
+                                System.out.println("Bus seats are full. Already on the waiting list at position " + result.getPosition());
+                            } else {
+                                System.out.println("Bus seats are full. Added to waiting list at position " + result.getPosition() + ": " + customer);
+                            }
                         } else {
                             System.out.println("Customer not found.");
                         }
                         break;
 
                     case 7:
-                        System.out.print("Enter Customer Name to Cancel Reservation: ");
+                        System.out.print("Enter Customer Mobile, Email or Name to Cancel Reservation: ");
                         name = scanner.nextLine();
-                        customer = customerReg.getCustomerByName(name);
+                        customer = customerReg.findCustomer(name);
                         if (customer != null) {
                             System.out.print("Enter Bus Number: ");
                             busNumber = scanner.nextLine();
-                            reservationSystem.cancelReservation(customer, busNumber);
+                            busNumber = readTrip(scanner, busNumber, false);
+                            BookingResult result = reservationSystem.cancelReservation(customer, busNumber);
+                            if (result.getStatus() == BookingResult.Status.NOT_RESERVED) {
+                                System.out.println("No reservation found for " + customer);
+                            }
                         } else {
                             System.out.println("Customer not found.");
                         }
                         break;
 
                         case 8:
-                        System.out.print("Enter Customer Name to Request Additional Seat: ");
+                        System.out.print("Enter Customer Mobile, Email or Name to Request Additional Seat: ");
                         name = scanner.nextLine();
-                        customer = customerReg.getCustomerByName(name);
+                        customer = customerReg.findCustomer(name);
                         if (customer != null) {
                             System.out.print("Enter Bus Number: ");
                             busNumber = scanner.nextLine();
+                            busNumber = readTrip(scanner, busNumber, true);
                             if (!reservationSystem.isCustomerReserved(customer, busNumber)) {
                                 System.out.println("You do not have a reservation for this bus. Please book your seat via option 6.");
                             } else {
-                                reservationSystem.addCustomerToWaitingList(customer, busNumber, busReg);
+                                BookingResult result = reservationSystem.addCustomerToWaitingList(customer, busNumber, busReg);
+                                if (result.getStatus() == BookingResult.Status.NO_SUCH_BUS) {
+                                    System.out.println("No such bus registered with number: " + busNumber);
+                                } else if (result.getStatus() == BookingResult.Status.WAITLISTED) {
+                                    System.out.println("Bus seats are full. Added to waiting list at position " + result.getPosition() + ": " + customer);
+                                } else if (result.getStatus() == BookingResult.Status.ALREADY_WAITLISTED) {
+                                    System.out.println("Already on the waiting list at position " + result.getPosition());
+                                } else {
+                                    System.out.println("Seats are still available. Use option 6 to reserve a seat.");
+                                }
                             }
                         } else {
                             System.out.println("Customer not found.");
@@ -562,17 +8117,115 @@ public class BusReservationDSA {
                     case 9:
                         System.out.print("Enter Bus Number to View Reservations: ");
                         busNumber = scanner.nextLine();
+                        busNumber = readTrip(scanner, busNumber, false);
                         reservationSystem.viewReservations(busNumber);
                         break;
 
                     case 10:
                         System.out.print("Enter Bus Number to View Waiting Queue: ");
                         busNumber = scanner.nextLine();
+                        busNumber = readTrip(scanner, busNumber, false);
                         reservationSystem.viewWaitingList(busNumber);
                         break;
 
                     case 11:
+                        System.out.print("Enter Start Point: ");
+                        startPoint = scanner.nextLine();
+                        System.out.print("Enter End Point: ");
+                        endPoint = scanner.nextLine();
+                        System.out.print("Depart After (e.g. 08:00): ");
+                        LocalTime after = Bus.parseTime(scanner.nextLine());
+                        if (after == null) {
+                            System.out.println("Invalid time. Use a format such as 08:00 or 8:00 AM.");
+                            break;
+                        }
+                        LocalDate travelDate = readDate(scanner, true);
+                        System.out.print("Sort by (1) earliest arrival or (2) lowest fare: ");
+                        JourneyPlanner.Order order = scanner.nextLine().trim().equals("2") ? JourneyPlanner.Order.FARE : JourneyPlanner.Order.ARRIVAL;
+                        List<JourneyPlanner.Journey> journeys = busReg.planJourneys(startPoint, endPoint, after, 3, order, 10,
+                                travelDate == null ? reservationSystem::hasFreeSeat : leg -> reservationSystem.hasFreeSeat(leg, travelDate));
+                        if (journeys.isEmpty()) {
+                            System.out.println("No connections with free seats found.");
+                        } else {
+                            for (JourneyPlanner.Journey journey : journeys) {
+                                System.out.println(journey);
+                            }
+                        }
+                        break;
+
+                    case 12:
+                        System.out.print("Enter Customer Mobile, Email or Name to Leave Waiting List: ");
+                        name = scanner.nextLine();
+                        customer = customerReg.findCustomer(name);
+                        if (customer != null) {
+                            System.out.print("Enter Bus Number: ");
+                            busNumber = scanner.nextLine();
+                            busNumber = readTrip(scanner, busNumber, false);
+                            BookingResult result = reservationSystem.withdrawFromWaitingList(customer, busNumber);
+                            if (result.getStatus() == BookingResult.Status.WITHDRAWN) {
+                                System.out.println("Removed from the waiting list: " + customer);
+                            } else {
+                                System.out.println("Not on the waiting list for Bus " + busNumber);
+                            }
+                        } else {
+                            System.out.println("Customer not found.");
+                        }
+                        break;
+
+                    case 13:
+                        System.out.print("Enter Customer Mobiles, Emails or Names, separated by commas: ");
+                        List<Customer> group = new ArrayList<>();
+                        for (String key : scanner.nextLine().split(",")) {
+                            customer = customerReg.findCustomer(key.trim());
+                            if (customer == null) {
+                                System.out.println("Customer not found: " + key.trim());
+                                group = null;
+                                break;
+                            }
+                            if (group.contains(customer)) {
+                                System.out.println("Customer listed twice: " + key.trim());
+                                group = null;
+                                break;
+                            }
+                            group.add(customer);
+                        }
+                        if (group == null) {
+                            break;
+                        }
+                        System.out.print("Enter Bus Number: ");
+                        busNumber = scanner.nextLine();
+                        busNumber = readTrip(scanner, busNumber, true);
+                        System.out.print("Seat the group together (y/n): ");
+                        boolean adjacent = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        System.out.print("Waitlist the group if it does not fit (y/n): ");
+                        boolean waitlist = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        BookingResult groupResult = reservationSystem.reserveGroup(group, busNumber, busReg, adjacent, waitlist);
+                        switch (groupResult.getStatus()) {
+                            case NO_SUCH_BUS:
+                                System.out.println("No bus registered with: " + busNumber);
+                                break;
+                            case RESERVED:
+                                System.out.println("Seats " + groupResult.getSeats() + " reserved for the group.");
+                                break;
+                            case WAITLISTED:
+                                System.out.println("Not enough" + (adjacent ? " adjacent" : "") + " seats for the group. Group added to waiting list from position " + groupResult.getPosition());
+                                break;
+                            case ALREADY_WAITLISTED:
+                                System.out.println("A member of the group is already on the waiting list. Nobody was added.");
+                                break;
+                            default:
+                                System.out.println("Not enough" + (adjacent ? " adjacent" : "") + " seats for the group. Nobody was booked.");
+                        }
+                        break;
+
+                    case 14:
                         System.out.println("Exiting...");
+                        outbox.shutdown();
+                        compactor.shutdown();
+                        customerReg.saveToFile();
+                        busReg.saveToFile();
+                        reservationSystem.saveToFile();
+                        dumpMetrics.run();
                         return;
 
                     default:
@@ -581,4 +8234,30 @@ public class BusReservationDSA {
             }
         }
     }
+    // Asks for the travel date of a trip; blank keeps the bus number alone, an open ticket
+    private static String readTrip(Scanner scanner, String busNumber, boolean booking) {
+        LocalDate date = readDate(scanner, booking);
+        return date == null ? busNumber : ReservationSystem.tripKey(busNumber, date);
+    }
+
+    // Bookings must fall between today and the booking horizon; lookups may ask about any date
+    private static LocalDate readDate(Scanner scanner, boolean booking) {
+        LocalDate today = LocalDate.now();
+        while (true) {
+            System.out.print("Enter Travel Date (yyyy-MM-dd, blank for an open ticket): ");
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) {
+                return null;
+            }
+            try {
+                LocalDate date = LocalDate.parse(line);
+                if (!booking || (!date.isBefore(today) && !date.isAfter(today.plusDays(ReservationSystem.BOOKING_HORIZON_DAYS)))) {
+                    return date;
+                }
+                System.out.println("Travel date must be between " + today + " and " + today.plusDays(ReservationSystem.BOOKING_HORIZON_DAYS));
+            } catch (DateTimeParseException e) {
+                System.out.println("Invalid date. Use the format yyyy-MM-dd.");
+            }
+        }
+    }
 }